@@ -0,0 +1,371 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A read-only, memory-mapped asset bundle in the {@link BundleFormat}
+ * layout, as written by the desktop bundle tool.
+ *
+ * <p>The bundle is opened and mapped once, and its index read into memory.
+ * Decoding an entry after that reads its pre-scaled payload straight from
+ * the mapping: no file is opened or stat'ed, and the pages come from the
+ * page cache shared with every other reader of the bundle. Entries carry no
+ * EXIF data, so none is looked for, and caches key them by the bundle's
+ * modification time as mapped, from {@link #lastModified(String)}. Because
+ * the payloads are already scaled for the screen, each decodes at or close
+ * to its stored size, and the stored dimensions save the bounds pass.
+ *
+ * <p>An entry is named by an entry path, {@code <bundle>!/<name>}, which
+ * {@link BitmapDecoder#decode(String, int, int, long, BitmapFactory.Options)}
+ * accepts in place of a file path. Bundles are opened on first use and stay
+ * mapped; only {@link #get} and {@link #open} check whether the file has
+ * changed. Content updates should be pushed as new files, since caches key
+ * entries by path.
+ */
+public final class AssetBundle {
+    private static final String TAG = "AssetBundle";
+
+    private static final String ENTRY_SEPARATOR = "!/";
+
+    private static final Map<String, AssetBundle> sBundles =
+            new HashMap<String, AssetBundle>();
+    // Opens bundles for open()
+    private static final ExecutorService sOpener =
+            Executors.newSingleThreadExecutor();
+
+    private final String mPath;
+    private final long mLength;
+    private final long mLastModified;
+    private final MappedByteBuffer mBuffer;
+    private final BundleIndex mIndex;
+
+    private AssetBundle(String path, long length, long lastModified,
+            MappedByteBuffer buffer, BundleIndex index) {
+        mPath = path;
+        mLength = length;
+        mLastModified = lastModified;
+        mBuffer = buffer;
+        mIndex = index;
+    }
+
+    /**
+     * @return The bundle in {@code file}, opened and mapped on first use or
+     *         after the file has changed.
+     * @throws IOException If the file cannot be read or is not a bundle.
+     */
+    public static AssetBundle get(File file) throws IOException {
+        String path = file.getAbsolutePath();
+        synchronized (sBundles) {
+            AssetBundle bundle = sBundles.get(path);
+            if (bundle == null || bundle.mLength != file.length()
+                    || bundle.mLastModified != file.lastModified()) {
+                bundle = map(file);
+                sBundles.put(path, bundle);
+            }
+            return bundle;
+        }
+    }
+
+    /**
+     * Receives the result of {@link #open} on the main thread.
+     */
+    public interface OpenCallback {
+        /**
+         * @param bundle The bundle, or null if it could not be opened.
+         */
+        void onBundleOpened(AssetBundle bundle);
+    }
+
+    /**
+     * Gets the bundle in {@code file}, like {@link #get}, on a background
+     * thread, since opening it maps the file and reads and checks its index.
+     */
+    public static void open(final File file, final OpenCallback callback) {
+        sOpener.execute(new Runnable() {
+            @Override
+            public void run() {
+                AssetBundle result = null;
+                try {
+                    result = get(file);
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot open " + file, e);
+                }
+                final AssetBundle bundle = result;
+                new Handler(Looper.getMainLooper()).post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onBundleOpened(bundle);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The bundle at {@code path}, mapped on first use, without
+     *         checking whether the file has changed since.
+     */
+    private static AssetBundle getMapped(String path) throws IOException {
+        synchronized (sBundles) {
+            AssetBundle bundle = sBundles.get(path);
+            if (bundle == null) {
+                bundle = map(new File(path));
+                sBundles.put(path, bundle);
+            }
+            return bundle;
+        }
+    }
+
+    private static AssetBundle map(File file) throws IOException {
+        long lastModified = file.lastModified();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        MappedByteBuffer buffer;
+        try {
+            long length = raf.length();
+            if (length < BundleFormat.HEADER_SIZE
+                    || length > Integer.MAX_VALUE) {
+                throw new IOException("Not a bundle: " + file);
+            }
+            // The mapping outlives the channel
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    length);
+        } finally {
+            raf.close();
+        }
+
+        BundleIndex index;
+        try {
+            index = BundleIndex.read(buffer);
+        } catch (IOException e) {
+            throw new IOException(e.getMessage() + ": " + file, e);
+        }
+        AssetBundle bundle = new AssetBundle(file.getAbsolutePath(),
+                buffer.capacity(), lastModified, buffer, index);
+        Log.d(TAG, "Mapped " + index.getEntryCount() + " entries of " + file);
+        return bundle;
+    }
+
+    /**
+     * @return Whether {@code path} names an entry of a bundle rather than a
+     *         file.
+     */
+    public static boolean isEntryPath(String path) {
+        return path.contains(BundleFormat.EXTENSION + ENTRY_SEPARATOR);
+    }
+
+    /**
+     * @return The modification time of the file at {@code path}, or for a
+     *         bundle entry that of its bundle as mapped, without a stat; 0 if
+     *         the bundle has not been mapped yet.
+     */
+    static long lastModified(String path) {
+        if (!isEntryPath(path)) {
+            return new File(path).lastModified();
+        }
+        AssetBundle bundle;
+        synchronized (sBundles) {
+            bundle = sBundles.get(getBundlePath(path));
+        }
+        return bundle != null ? bundle.mLastModified : 0;
+    }
+
+    private static String getBundlePath(String entryPath) {
+        return entryPath.substring(0,
+                entryPath.indexOf(BundleFormat.EXTENSION + ENTRY_SEPARATOR)
+                        + BundleFormat.EXTENSION.length());
+    }
+
+    /**
+     * Decodes the bundle entry at {@code entryPath}, like
+     * {@link BitmapDecoder#decode(String, int, int, long,
+     * BitmapFactory.Options)}.
+     */
+    static Bitmap decode(String entryPath, int reqWidth, int reqHeight,
+            long maxBytes, BitmapFactory.Options options) {
+        String path = getBundlePath(entryPath);
+        AssetBundle bundle;
+        try {
+            // Mapped already, as a rule; the file is not checked for changes
+            bundle = getMapped(path);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot open " + entryPath, e);
+            return null;
+        }
+        int index = bundle.indexOf(entryPath.substring(
+                path.length() + ENTRY_SEPARATOR.length()));
+        if (index < 0) {
+            Log.w(TAG, "No entry " + entryPath);
+            return null;
+        }
+        return bundle.decode(index, reqWidth, reqHeight, maxBytes, options);
+    }
+
+    /**
+     * Decodes entry {@code index} in a single pass, like
+     * {@link BitmapDecoder#decode(String, int, int, long,
+     * BitmapFactory.Options)}.
+     */
+    public Bitmap decode(int index, int reqWidth, int reqHeight,
+            long maxBytes, BitmapFactory.Options options) {
+        ByteBuffer payload = mBuffer.duplicate();
+        int offset = (int) mIndex.getOffset(index);
+        payload.position(offset);
+        payload.limit(offset + mIndex.getLength(index));
+        final ByteBuffer slice = payload.slice();
+        return BitmapDecoder.decode(new BitmapDecoder.Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeStream(
+                        new BufferInputStream(slice.duplicate()), null,
+                        options);
+            }
+        }, mIndex.getWidth(index), mIndex.getHeight(index), reqWidth,
+                reqHeight, maxBytes, options);
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    /**
+     * @return The size of the bundle file in bytes.
+     */
+    public long getLength() {
+        return mLength;
+    }
+
+    /**
+     * @return The modification time of the bundle file when it was mapped.
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    public int getEntryCount() {
+        return mIndex.getEntryCount();
+    }
+
+    public String getName(int index) {
+        return mIndex.getName(index);
+    }
+
+    /**
+     * @return The path that names entry {@code index}, for
+     *         {@link BitmapDecoder} and the {@link ContentIndex}.
+     */
+    public String getEntryPath(int index) {
+        return mPath + ENTRY_SEPARATOR + mIndex.getName(index);
+    }
+
+    /**
+     * @return The {@link ContentIndex} tags the entry was bundled with.
+     */
+    public String[] getTags(int index) {
+        return mIndex.getTags(index);
+    }
+
+    /**
+     * @return The index of the entry named {@code name}, or -1 if there is
+     *         none.
+     */
+    public int indexOf(String name) {
+        return mIndex.indexOf(name);
+    }
+
+    /**
+     * Prints the bundle's path and entry count.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Bundle: " + mPath + ", " + getEntryCount()
+                + " entries, " + mLength + " bytes");
+    }
+
+    /**
+     * Reads a buffer without copying it first, with mark and reset so that
+     * the decoder can rewind over headers it has sniffed.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!mBuffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public void mark(int readLimit) {
+            mBuffer.mark();
+        }
+
+        @Override
+        public void reset() {
+            mBuffer.reset();
+        }
+    }
+}
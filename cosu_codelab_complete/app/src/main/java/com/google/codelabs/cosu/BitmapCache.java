@@ -0,0 +1,201 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import java.util.Map;
+
+/**
+ * Process-wide cache of decoded bitmaps, bounded by their size in bytes.
+ *
+ * <p>Entries are keyed by source path, source modification time and the
+ * size the bitmap was decoded for, so a replaced file never returns a stale
+ * bitmap. Lookups also accept a bitmap decoded for a slightly different size,
+ * which lets {@link LockedActivity} reuse the preview {@link MainActivity}
+ * has already decoded instead of reading the file again.
+ *
+ * <p>Cached bitmaps are held in the {@link BitmapPool}, so they are only
+ * reused for other images once they have left the cache and no view shows
+ * them.
+ */
+public class BitmapCache {
+    // A bitmap is good enough if it covers this much of the requested size
+    private static final float MIN_COVERAGE = 0.8f;
+
+    private static BitmapCache sInstance;
+
+    private final LruCache<Key, Bitmap> mCache;
+
+    /**
+     * @return The process-wide cache, sized to an eighth of the heap.
+     */
+    public static synchronized BitmapCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapCache(
+                    (int) (Runtime.getRuntime().maxMemory() / 8));
+        }
+        return sInstance;
+    }
+
+    BitmapCache(int maxBytes) {
+        mCache = new LruCache<Key, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Key key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key,
+                    Bitmap oldValue, Bitmap newValue) {
+                BitmapPool.getInstance().release(oldValue);
+            }
+        };
+    }
+
+    /**
+     * @return A bitmap of {@code path} at {@code lastModified} that can be
+     *         shown at {@code width} x {@code height}, or null.
+     */
+    public Bitmap get(String path, long lastModified, int width, int height) {
+        Key wanted = new Key(path, lastModified, width, height);
+        Bitmap bitmap = mCache.get(wanted);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        Key bestKey = null;
+        float bestCoverage = 0f;
+        for (Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+            Key key = entry.getKey();
+            if (!key.sameSource(wanted)) {
+                continue;
+            }
+            float coverage = coverage(key, entry.getValue(), width, height);
+            if (coverage > bestCoverage) {
+                bestCoverage = coverage;
+                bestKey = key;
+            }
+        }
+        if (bestKey == null || bestCoverage < MIN_COVERAGE) {
+            return null;
+        }
+        // Promote the entry in the LRU order
+        return mCache.get(bestKey);
+    }
+
+    /**
+     * @return The largest cached bitmap of {@code path} at
+     *         {@code lastModified} whatever size it was decoded for, to show
+     *         until a sharper one has been decoded, or null.
+     */
+    public Bitmap getPreview(String path, long lastModified) {
+        Key wanted = new Key(path, lastModified, 0, 0);
+        Key bestKey = null;
+        int bestWidth = 0;
+        for (Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+            if (entry.getKey().sameSource(wanted)
+                    && entry.getValue().getWidth() > bestWidth) {
+                bestWidth = entry.getValue().getWidth();
+                bestKey = entry.getKey();
+            }
+        }
+        return bestKey != null ? mCache.get(bestKey) : null;
+    }
+
+    /**
+     * Adds a bitmap decoded from {@code path} for {@code width} x
+     * {@code height}.
+     */
+    public void put(String path, long lastModified, int width, int height,
+            Bitmap bitmap) {
+        BitmapPool.getInstance().retain(bitmap);
+        mCache.put(new Key(path, lastModified, width, height), bitmap);
+    }
+
+    /**
+     * Removes every bitmap decoded from {@code path}.
+     */
+    public void invalidate(String path) {
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.mPath.equals(path)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Evicts the least recently used bitmaps until the cache holds at most
+     * {@code fraction} of its maximum size.
+     */
+    public void trimToFraction(float fraction) {
+        mCache.trimToSize((int) (mCache.maxSize() * fraction));
+    }
+
+    /**
+     * @return How much of a {@code width} x {@code height} request a cached
+     *         bitmap can fill without being scaled up.
+     */
+    private static float coverage(Key key, Bitmap bitmap, int width,
+            int height) {
+        // Neither side reached the size it was decoded for, so the bitmap is
+        // the whole source image and nothing sharper can be decoded
+        if (bitmap.getWidth() < key.mWidth
+                && bitmap.getHeight() < key.mHeight) {
+            return 1f;
+        }
+        return Math.max((float) bitmap.getWidth() / width,
+                (float) bitmap.getHeight() / height);
+    }
+
+    private static final class Key {
+        final String mPath;
+        final long mLastModified;
+        final int mWidth;
+        final int mHeight;
+
+        Key(String path, long lastModified, int width, int height) {
+            mPath = path;
+            mLastModified = lastModified;
+            mWidth = width;
+            mHeight = height;
+        }
+
+        boolean sameSource(Key other) {
+            return mLastModified == other.mLastModified
+                    && mPath.equals(other.mPath);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sameSource(other) && mWidth == other.mWidth
+                    && mHeight == other.mHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mPath.hashCode();
+            result = 31 * result
+                    + (int) (mLastModified ^ (mLastModified >>> 32));
+            result = 31 * result + mWidth;
+            return 31 * result + mHeight;
+        }
+    }
+}
@@ -0,0 +1,327 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Decodes image files to fit a target size without ever decoding more pixels
+ * than the target can show.
+ *
+ * <p>Decoding happens in two steps. A power-of-two {@code inSampleSize} lets
+ * the decoder skip most of the source pixels cheaply, then
+ * {@code inDensity}/{@code inTargetDensity} scales the sampled image down to
+ * the exact fit-center size inside the same decode call, so no intermediate
+ * full-size bitmap is ever allocated.
+ *
+ * <p>The source is opened once, as a file descriptor, and both the bounds
+ * pass and the pixel pass read through that descriptor, so files and
+ * {@code content://} URIs from other apps' providers decode the same way.
+ */
+public final class BitmapDecoder {
+    private static final String TAG = "BitmapDecoder";
+
+    private BitmapDecoder() {}
+
+    /**
+     * Decodes {@code path} to fit inside {@code reqWidth} x {@code reqHeight},
+     * preserving the aspect ratio and never upscaling. {@code path} may also
+     * be an {@link AssetBundle} entry path.
+     *
+     * @param maxBytes Upper bound for the decoded bitmap's size in bytes. The
+     *                 result is scaled down further if the fitted size would
+     *                 exceed it.
+     * @param options Options to decode with. The caller may keep a reference to
+     *                cancel the decode through
+     *                {@link BitmapFactory.Options#requestCancelDecode()}.
+     *                A mutable {@code inBitmap} of at least {@code maxBytes}
+     *                can always be decoded into. Without one, the bitmap is
+     *                decoded into one from the {@link BitmapPool} if it has
+     *                a fit; the result is mutable either way.
+     * @return The decoded bitmap, or null if the file could not be decoded or
+     *         the decode was cancelled.
+     */
+    public static Bitmap decode(String path, int reqWidth, int reqHeight,
+            long maxBytes, BitmapFactory.Options options) {
+        return decode(path, reqWidth, reqHeight, maxBytes, Long.MAX_VALUE,
+                options);
+    }
+
+    /**
+     * Decodes {@code path} like {@link #decode(String, int, int, long,
+     * BitmapFactory.Options)}, unless the source has more than
+     * {@code maxSourcePixels} pixels. Bundle entries are scaled for the
+     * screen already and always decoded.
+     *
+     * @return The decoded bitmap, or null. If the source was too large,
+     *         {@code options.outWidth} and {@code outHeight} hold its
+     *         dimensions.
+     */
+    public static Bitmap decode(String path, int reqWidth, int reqHeight,
+            long maxBytes, long maxSourcePixels,
+            BitmapFactory.Options options) {
+        if (AssetBundle.isEntryPath(path)) {
+            return AssetBundle.decode(path, reqWidth, reqHeight, maxBytes,
+                    options);
+        }
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = ParcelFileDescriptor.open(new File(path),
+                    ParcelFileDescriptor.MODE_READ_ONLY);
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Cannot open " + path);
+            return null;
+        }
+        try {
+            return decode(pfd.getFileDescriptor(), reqWidth, reqHeight,
+                    maxBytes, maxSourcePixels, options);
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Decodes the image at {@code uri}, a {@code content://} or
+     * {@code file://} URI, like {@link #decode(String, int, int, long,
+     * BitmapFactory.Options)}.
+     */
+    public static Bitmap decode(Context context, Uri uri, int reqWidth,
+            int reqHeight, long maxBytes, BitmapFactory.Options options) {
+        return decode(context, uri, reqWidth, reqHeight, maxBytes,
+                Long.MAX_VALUE, options);
+    }
+
+    /**
+     * Decodes the image at {@code uri} like {@link #decode(String, int, int,
+     * long, long, BitmapFactory.Options)}.
+     */
+    public static Bitmap decode(Context context, Uri uri, int reqWidth,
+            int reqHeight, long maxBytes, long maxSourcePixels,
+            BitmapFactory.Options options) {
+        ParcelFileDescriptor pfd;
+        try {
+            pfd = context.getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException e) {
+            Log.w(TAG, "Cannot open " + uri);
+            return null;
+        }
+        if (pfd == null) {
+            return null;
+        }
+        try {
+            return decode(pfd.getFileDescriptor(), reqWidth, reqHeight,
+                    maxBytes, maxSourcePixels, options);
+        } finally {
+            closeQuietly(pfd);
+        }
+    }
+
+    /**
+     * Reads an encoded image. Called once for each decode pass, so it must
+     * start from the beginning of the image every time.
+     */
+    interface Source {
+        Bitmap decode(BitmapFactory.Options options);
+    }
+
+    /**
+     * Decodes the image read from {@code fd}, like {@link #decode(String,
+     * int, int, long, BitmapFactory.Options)}. The descriptor's position is
+     * left unchanged and it stays open.
+     */
+    public static Bitmap decode(FileDescriptor fd, int reqWidth,
+            int reqHeight, long maxBytes, BitmapFactory.Options options) {
+        return decode(fd, reqWidth, reqHeight, maxBytes, Long.MAX_VALUE,
+                options);
+    }
+
+    private static Bitmap decode(final FileDescriptor fd, int reqWidth,
+            int reqHeight, long maxBytes, long maxSourcePixels,
+            BitmapFactory.Options options) {
+        // decodeFileDescriptor() restores the position, so the pixel pass
+        // reads the same descriptor again
+        Source source = new Source() {
+            @Override
+            public Bitmap decode(BitmapFactory.Options options) {
+                return BitmapFactory.decodeFileDescriptor(fd, null, options);
+            }
+        };
+
+        // Get the dimensions of the bitmap
+        options.inJustDecodeBounds = true;
+        source.decode(options);
+        if (options.mCancel || options.outWidth <= 0
+                || options.outHeight <= 0) {
+            return null;
+        }
+        if ((long) options.outWidth * options.outHeight > maxSourcePixels) {
+            return null;
+        }
+        return decode(source, options.outWidth, options.outHeight, reqWidth,
+                reqHeight, maxBytes, options);
+    }
+
+    /**
+     * Decodes a {@code srcWidth} x {@code srcHeight} image from
+     * {@code source} in a single pass, like {@link #decode(String, int, int,
+     * long, BitmapFactory.Options)}, for sources whose dimensions are
+     * already known.
+     */
+    static Bitmap decode(Source source, int srcWidth, int srcHeight,
+            int reqWidth, int reqHeight, long maxBytes,
+            BitmapFactory.Options options) {
+        prepareOptions(srcWidth, srcHeight, reqWidth, reqHeight, maxBytes,
+                options);
+
+        options.inMutable = true;
+        Bitmap reused = null;
+        if (options.inBitmap == null) {
+            reused = BitmapPool.getInstance().get(outputBytes(srcWidth,
+                    srcHeight, options));
+            options.inBitmap = reused;
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = source.decode(options);
+        } catch (IllegalArgumentException e) {
+            if (reused == null) {
+                throw e;
+            }
+            // The estimate was short; give the bitmap back and allocate
+            BitmapPool.getInstance().put(reused);
+            reused = null;
+            options.inBitmap = null;
+            bitmap = source.decode(options);
+        }
+        if (reused != null) {
+            options.inBitmap = null;
+            if (bitmap == null) {
+                BitmapPool.getInstance().put(reused);
+            }
+        }
+        if (bitmap != null) {
+            // The density only carried the scale ratio; don't let
+            // BitmapDrawable rescale the result for the screen
+            bitmap.setDensity(Bitmap.DENSITY_NONE);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Sets up {@code options} for the pixel pass of a source image that is
+     * {@code srcWidth} x {@code srcHeight}.
+     */
+    static void prepareOptions(int srcWidth, int srcHeight, int reqWidth,
+            int reqHeight, long maxBytes, BitmapFactory.Options options) {
+        int bytesPerPixel = bytesPerPixel(options.inPreferredConfig);
+        float scale = fitScale(srcWidth, srcHeight, reqWidth, reqHeight,
+                maxBytes / bytesPerPixel);
+        int dstWidth = Math.max(1, (int) (srcWidth * scale));
+
+        int sampleSize = calculateInSampleSize(scale);
+        int sampledWidth = srcWidth / sampleSize;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        if (dstWidth < sampledWidth) {
+            options.inScaled = true;
+            options.inDensity = sampledWidth;
+            options.inTargetDensity = dstWidth;
+        } else {
+            options.inScaled = false;
+            options.inDensity = 0;
+            options.inTargetDensity = 0;
+        }
+    }
+
+    /**
+     * @return An upper bound for the size in bytes of the bitmap that
+     *         {@code options}, set up by {@link #prepareOptions}, decode a
+     *         {@code srcWidth} x {@code srcHeight} source to.
+     */
+    static long outputBytes(int srcWidth, int srcHeight,
+            BitmapFactory.Options options) {
+        // Decoders round sampled sizes either way; assume up
+        int sampleSize = options.inSampleSize;
+        long width = (srcWidth + sampleSize - 1) / sampleSize;
+        long height = (srcHeight + sampleSize - 1) / sampleSize;
+        if (options.inScaled && options.inDensity > 0
+                && options.inTargetDensity > 0) {
+            float scale = (float) options.inTargetDensity / options.inDensity;
+            width = (long) Math.ceil(width * scale);
+            height = (long) Math.ceil(height * scale);
+        }
+        return width * height * bytesPerPixel(options.inPreferredConfig);
+    }
+
+    /**
+     * @return The scale that fits the source inside the requested bounds and
+     *         pixel budget. Never greater than 1.
+     */
+    static float fitScale(int srcWidth, int srcHeight, int reqWidth,
+            int reqHeight, long maxPixels) {
+        float scale = 1f;
+        if (reqWidth > 0 && reqHeight > 0) {
+            scale = Math.min(1f, Math.min((float) reqWidth / srcWidth,
+                    (float) reqHeight / srcHeight));
+        }
+        double pixels = (double) srcWidth * srcHeight * scale * scale;
+        if (maxPixels > 0 && pixels > maxPixels) {
+            scale *= (float) Math.sqrt(maxPixels / pixels);
+        }
+        return scale;
+    }
+
+    /**
+     * @return The largest power of two that does not sample the image below
+     *         {@code scale}.
+     */
+    static int calculateInSampleSize(float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static void closeQuietly(ParcelFileDescriptor pfd) {
+        try {
+            pfd.close();
+        } catch (IOException e) {
+            // ignored
+        }
+    }
+
+    static int bytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.RGB_565
+                || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else if (config == Bitmap.Config.ALPHA_8) {
+            return 1;
+        }
+        return 4;
+    }
+}
@@ -0,0 +1,248 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Bitmap;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Process-wide pool of unused mutable bitmaps that {@link BitmapDecoder}
+ * decodes into through {@code inBitmap} instead of allocating.
+ *
+ * <p>A bitmap may only be reused once nothing shows or caches it any more.
+ * Everything that keeps a bitmap, such as the {@link BitmapCache} and the
+ * views filled by {@link ImageLoader}, calls {@link #retain} and later
+ * {@link #release}; when the last holder releases it, the bitmap joins the
+ * pool. Pooled bitmaps are grouped in size classes a quarter of an octave
+ * apart and a request is served from the smallest class that fits, so no
+ * more than twice the needed memory is handed out. The least recently pooled
+ * bitmaps are dropped to stay within the byte budget.
+ */
+public class BitmapPool {
+    // Size classes per doubling of the byte count
+    private static final int CLASSES_PER_OCTAVE = 4;
+    // Never hand out a bitmap more than one octave larger than needed
+    private static final int MAX_CLASS_SPAN = CLASSES_PER_OCTAVE;
+
+    private static BitmapPool sInstance;
+
+    private final long mMaxBytes;
+
+    // All guarded by this
+    private final TreeMap<Integer, ArrayDeque<Bitmap>> mClasses =
+            new TreeMap<Integer, ArrayDeque<Bitmap>>();
+    // Pooled bitmaps, least recently pooled first
+    private final LinkedHashMap<Bitmap, Integer> mLru =
+            new LinkedHashMap<Bitmap, Integer>();
+    private final Holds<Bitmap> mHolds = new Holds<Bitmap>();
+    private long mBytes;
+    private long mHits;
+    private long mMisses;
+    private long mReturns;
+    private long mEvictions;
+
+    /**
+     * @return The process-wide pool, bounded to a sixteenth of the heap.
+     */
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool(
+                    Runtime.getRuntime().maxMemory() / 16);
+        }
+        return sInstance;
+    }
+
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Takes a bitmap out of the pool that a decode of {@code byteCount}
+     * bytes can reuse.
+     *
+     * @return The bitmap, or null if none fits.
+     */
+    public synchronized Bitmap get(long byteCount) {
+        int sizeClass = sizeClass(byteCount);
+        for (Map.Entry<Integer, ArrayDeque<Bitmap>> entry : mClasses.subMap(
+                sizeClass, true, sizeClass + MAX_CLASS_SPAN, true)
+                .entrySet()) {
+            Iterator<Bitmap> it = entry.getValue().iterator();
+            while (it.hasNext()) {
+                Bitmap bitmap = it.next();
+                if (bitmap.getAllocationByteCount() >= byteCount) {
+                    it.remove();
+                    removeFromLru(bitmap, entry.getKey());
+                    mHits++;
+                    return bitmap;
+                }
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Records that {@code bitmap} is shown or cached somewhere and must not
+     * be reused until a matching {@link #release}.
+     */
+    public synchronized void retain(Bitmap bitmap) {
+        mHolds.retain(bitmap);
+    }
+
+    /**
+     * Drops one hold on {@code bitmap}, returning it to the pool if that was
+     * the last.
+     */
+    public synchronized void release(Bitmap bitmap) {
+        if (mHolds.release(bitmap)) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * Adds {@code bitmap} to the pool. The caller must not use it afterwards.
+     * Bitmaps that cannot be decoded into are ignored.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!bitmap.isMutable() || bitmap.isRecycled()
+                || mHolds.isHeld(bitmap) || mLru.containsKey(bitmap)) {
+            return;
+        }
+        int bytes = bitmap.getAllocationByteCount();
+        if (bytes > mMaxBytes / 2) {
+            // Would push out everything else
+            return;
+        }
+        int sizeClass = sizeClass(bytes);
+        ArrayDeque<Bitmap> bitmaps = mClasses.get(sizeClass);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<Bitmap>();
+            mClasses.put(sizeClass, bitmaps);
+        }
+        bitmaps.push(bitmap);
+        mLru.put(bitmap, sizeClass);
+        mBytes += bytes;
+        mReturns++;
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Drops pooled bitmaps, least recently pooled first, until the pool
+     * holds at most {@code maxBytes}.
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        Iterator<Map.Entry<Bitmap, Integer>> it = mLru.entrySet().iterator();
+        while (mBytes > maxBytes && it.hasNext()) {
+            Map.Entry<Bitmap, Integer> eldest = it.next();
+            Bitmap bitmap = eldest.getKey();
+            ArrayDeque<Bitmap> bitmaps = mClasses.get(eldest.getValue());
+            bitmaps.remove(bitmap);
+            if (bitmaps.isEmpty()) {
+                mClasses.remove(eldest.getValue());
+            }
+            it.remove();
+            mBytes -= bitmap.getAllocationByteCount();
+            mEvictions++;
+        }
+    }
+
+    /**
+     * @return The size of the pooled bitmaps in bytes.
+     */
+    public synchronized long getSize() {
+        return mBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHits;
+    }
+
+    public synchronized long getMissCount() {
+        return mMisses;
+    }
+
+    /**
+     * Prints the pool's size and hit rate.
+     */
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        long requests = mHits + mMisses;
+        writer.print(prefix);
+        writer.println("Bitmap pool: " + mLru.size() + " bitmaps, "
+                + mBytes / 1024 + "/" + mMaxBytes / 1024 + " KB");
+        writer.print(prefix);
+        writer.println("  hits=" + mHits + " misses=" + mMisses
+                + " hitRate=" + (requests > 0 ? mHits * 100 / requests : 0)
+                + "% returns=" + mReturns + " evictions=" + mEvictions);
+    }
+
+    private void removeFromLru(Bitmap bitmap, int sizeClass) {
+        mLru.remove(bitmap);
+        mBytes -= bitmap.getAllocationByteCount();
+        if (mClasses.get(sizeClass).isEmpty()) {
+            mClasses.remove(sizeClass);
+        }
+    }
+
+    /**
+     * @return The smallest class whose upper bound is at least
+     *         {@code byteCount}.
+     */
+    static int sizeClass(long byteCount) {
+        return (int) Math.ceil(CLASSES_PER_OCTAVE
+                * Math.log(Math.max(1, byteCount)) / Math.log(2));
+    }
+
+    /**
+     * Counts the holds on objects by identity. Not thread-safe.
+     */
+    static class Holds<T> {
+        private final IdentityHashMap<T, Integer> mCounts =
+                new IdentityHashMap<T, Integer>();
+
+        void retain(T object) {
+            Integer holds = mCounts.get(object);
+            mCounts.put(object, holds == null ? 1 : holds + 1);
+        }
+
+        /**
+         * @return Whether that was the last hold on {@code object}. False
+         *         if it was not held at all.
+         */
+        boolean release(T object) {
+            Integer holds = mCounts.get(object);
+            if (holds == null) {
+                return false;
+            }
+            if (holds > 1) {
+                mCounts.put(object, holds - 1);
+                return false;
+            }
+            mCounts.remove(object);
+            return true;
+        }
+
+        boolean isHeld(T object) {
+            return mCounts.containsKey(object);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Records how long the kiosk takes from boot to showing its content.
+ *
+ * <p>Each milestone is timestamped in milliseconds since boot the first time
+ * it happens after a boot. The last {@link #MAX_BOOTS} boots are kept in a
+ * small fixed-size file and printed by {@link LockedActivity#dump}, e.g.
+ * {@code adb shell dumpsys activity com.google.codelabs.cosu}. The boot id
+ * and the file are read on the writer thread, ahead of any mark, so that
+ * {@link #getInstance} can be called from {@code Application.onCreate()}.
+ */
+public class BootTimings {
+    private static final String TAG = "BootTimings";
+
+    public static final int EVENT_BOOT_COMPLETED = 0;
+    public static final int EVENT_PROCESS_START = 1;
+    public static final int EVENT_LOCKED_CREATE = 2;
+    public static final int EVENT_POLICY_APPLIED = 3;
+    public static final int EVENT_DECODE_START = 4;
+    public static final int EVENT_DECODE_END = 5;
+    public static final int EVENT_FIRST_FRAME = 6;
+    private static final String[] EVENT_NAMES = {
+            "bootCompleted",
+            "processStart",
+            "lockedCreate",
+            "policyApplied",
+            "decodeStart",
+            "decodeEnd",
+            "firstFrame",
+    };
+    private static final int EVENT_COUNT = EVENT_NAMES.length;
+
+    static final int MAX_BOOTS = 16;
+
+    private static final String FILE_NAME = "boot_timings.bin";
+    private static final String BOOT_ID_PATH =
+            "/proc/sys/kernel/random/boot_id";
+    private static final int FILE_VERSION = 2;
+    private static final int HEADER_BYTES = 8;
+    private static final int RECORD_BYTES = 8 + 8 * EVENT_COUNT;
+    private static final int NOT_SEEN = -1;
+
+    private static BootTimings sInstance;
+
+    private final File mFile;
+    private final ExecutorService mWriter =
+            Executors.newSingleThreadExecutor();
+
+    // Ring of boot records; guarded by this and only changed on mWriter
+    private long mBootId;
+    private final long[] mBootIds = new long[MAX_BOOTS];
+    private final long[][] mTimes = new long[MAX_BOOTS][EVENT_COUNT];
+    private int mRecordCount;
+
+    public static synchronized BootTimings getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new BootTimings(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private BootTimings(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        for (long[] times : mTimes) {
+            Arrays.fill(times, NOT_SEEN);
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                long bootId = readBootId();
+                synchronized (BootTimings.this) {
+                    mBootId = bootId;
+                    load();
+                }
+            }
+        });
+    }
+
+    /**
+     * Records that {@code event} happened now, unless it has already
+     * happened since the device booted.
+     */
+    public void mark(final int event) {
+        final long now = SystemClock.elapsedRealtime();
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                record(event, now);
+            }
+        });
+    }
+
+    private void record(int event, long time) {
+        int slot;
+        synchronized (this) {
+            slot = (mRecordCount - 1 + MAX_BOOTS) % MAX_BOOTS;
+            if (mRecordCount == 0 || mBootIds[slot] != mBootId) {
+                slot = mRecordCount % MAX_BOOTS;
+                mRecordCount++;
+                mBootIds[slot] = mBootId;
+                Arrays.fill(mTimes[slot], NOT_SEEN);
+            }
+            if (mTimes[slot][event] != NOT_SEEN) {
+                return;
+            }
+            mTimes[slot][event] = time;
+        }
+        writeRecord(slot);
+    }
+
+    /**
+     * Prints the recorded boots, newest first.
+     */
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Boot timings (ms since boot):");
+        int boots = Math.min(mRecordCount, MAX_BOOTS);
+        for (int i = 0; i < boots; i++) {
+            int slot = (mRecordCount - 1 - i + MAX_BOOTS) % MAX_BOOTS;
+            writer.print(prefix);
+            writer.print("  ");
+            writer.print(mBootIds[slot] == mBootId
+                    ? "current boot" : "boot " + (mRecordCount - i));
+            long[] times = mTimes[slot];
+            for (int event = 0; event < EVENT_COUNT; event++) {
+                writer.print(' ');
+                writer.print(EVENT_NAMES[event]);
+                writer.print('=');
+                writer.print(times[event] == NOT_SEEN
+                        ? "-" : Long.toString(times[event]));
+            }
+            writer.println();
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "r");
+            if (file.readInt() != FILE_VERSION) {
+                return;
+            }
+            int recordCount = file.readInt();
+            int boots = Math.min(recordCount, MAX_BOOTS);
+            for (int slot = 0; slot < boots; slot++) {
+                mBootIds[slot] = file.readLong();
+                for (int event = 0; event < EVENT_COUNT; event++) {
+                    mTimes[slot][event] = file.readLong();
+                }
+            }
+            mRecordCount = recordCount;
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable " + mFile, e);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    private void writeRecord(int slot) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            synchronized (this) {
+                file.writeInt(FILE_VERSION);
+                file.writeInt(mRecordCount);
+                file.seek(HEADER_BYTES + (long) slot * RECORD_BYTES);
+                file.writeLong(mBootIds[slot]);
+                for (int event = 0; event < EVENT_COUNT; event++) {
+                    file.writeLong(mTimes[slot][event]);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to write " + mFile, e);
+        } finally {
+            closeQuietly(file);
+        }
+    }
+
+    /**
+     * @return An identifier that is the same for every process started
+     *         during one boot of the device.
+     */
+    private static long readBootId() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(BOOT_ID_PATH));
+            UUID uuid = UUID.fromString(reader.readLine().trim());
+            return uuid.getMostSignificantBits()
+                    ^ uuid.getLeastSignificantBits();
+        } catch (IOException e) {
+            return fallbackBootId();
+        } catch (RuntimeException e) {
+            return fallbackBootId();
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private static long fallbackBootId() {
+        // Wall clock time of the boot, to the nearest minute
+        return (System.currentTimeMillis() - SystemClock.elapsedRealtime())
+                / 60000;
+    }
+
+    private static void closeQuietly(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Processes captured photos one at a time on a background thread.
+ *
+ * <p>Each photo is {@link PhotoStore#ingest ingested} under its content
+ * hash, added to the {@link ContentIndex}, gets its display-sized
+ * {@link Renditions rendition} unless an identical photo already has one,
+ * is queued for the media scanner and is then counted against the
+ * {@link PhotoStore} quota. At most
+ * {@link #MAX_IN_FLIGHT} photos are queued or being processed at once; the
+ * queue holds paths only, and the single worker decodes one photo at a
+ * time, so a burst of captures never holds more than one image in memory.
+ * {@link #submit} refuses further photos while the pipeline is full, and
+ * the capture session waits for {@link Listener#onPhotoProcessed} before it
+ * opens the camera again.
+ *
+ * <p>The pipeline lives as long as the process, so photos submitted by an
+ * activity that is destroyed while the camera is in front are still
+ * processed, and reported to the activity that replaces it.
+ */
+public class CapturePipeline {
+    private static final String TAG = "CapturePipeline";
+
+    /** Photos that may be waiting or in progress at once. */
+    static final int MAX_IN_FLIGHT = 3;
+
+    /**
+     * Receives processed photos on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param capturePath The photo as captured, which no longer exists
+         *                    once it has been ingested.
+         * @param photoPath   The photo as stored.
+         * @param displayPath Its rendition, or {@code photoPath} if the
+         *                    rendition could not be generated.
+         */
+        void onPhotoProcessed(String capturePath, String photoPath,
+                String displayPath);
+    }
+
+    private static CapturePipeline sInstance;
+
+    private final Context mContext;
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Guarded by this
+    private int mInFlight;
+    private Listener mListener;
+
+    /**
+     * @return The pipeline, created on first use.
+     */
+    public static synchronized CapturePipeline getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CapturePipeline(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CapturePipeline(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Sets the listener for processed photos, replacing any earlier one.
+     * Pass null to stop listening; photos processed meanwhile are not
+     * reported.
+     */
+    public synchronized void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public synchronized Listener getListener() {
+        return mListener;
+    }
+
+    /**
+     * @return Whether {@link #submit} would refuse a photo right now.
+     */
+    public synchronized boolean isFull() {
+        return mInFlight >= MAX_IN_FLIGHT;
+    }
+
+    /**
+     * Queues the captured photo at {@code path} for processing.
+     *
+     * @return false, without queueing the photo, if the pipeline is full.
+     */
+    public boolean submit(final String path) {
+        synchronized (this) {
+            if (mInFlight >= MAX_IN_FLIGHT) {
+                return false;
+            }
+            mInFlight++;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                String photoPath = path;
+                String displayPath = path;
+                try {
+                    photoPath = PhotoStore.getInstance(mContext).ingest(path);
+                    displayPath = process(photoPath);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to process " + path, e);
+                } finally {
+                    synchronized (CapturePipeline.this) {
+                        mInFlight--;
+                    }
+                }
+                deliver(path, photoPath, displayPath);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return The path to display {@code path} with.
+     */
+    private String process(String path) {
+        ContentIndex.getInstance(mContext).put(path, ContentIndex.TAG_CAMERA);
+        MediaScanQueue.getInstance(mContext).enqueue(path);
+        // A photo that was captured before keeps its rendition
+        String displayPath = Renditions.getDisplayPath(mContext, path);
+        if (displayPath.equals(path)) {
+            String renditionPath = Renditions.generateBlocking(mContext,
+                    path);
+            if (renditionPath != null) {
+                displayPath = renditionPath;
+            }
+        }
+        // Count the photo and its rendition against the quota
+        PhotoStore.getInstance(mContext).compact();
+        return displayPath;
+    }
+
+    private void deliver(final String path, final String photoPath,
+            final String displayPath) {
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Listener listener = getListener();
+                if (listener != null) {
+                    listener.onPhotoProcessed(path, photoPath, displayPath);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,220 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Watches a directory of images and reports each image that is added,
+ * rewritten or removed, so that content can be changed on a locked device.
+ *
+ * <p>The directory is listed once, on a background thread, when
+ * {@link #start} is called. After that only the files named by inotify
+ * events are looked at. An image is reported once it
+ * has been closed after writing or moved into the directory, so a file that
+ * is still being copied is never shown half written. Writers that replace
+ * files should write to a hidden ({@code .}-prefixed) name first and then
+ * rename it.
+ */
+public class ContentDirectoryWatcher {
+    private static final int EVENTS = FileObserver.CLOSE_WRITE
+            | FileObserver.MOVED_TO | FileObserver.MOVED_FROM
+            | FileObserver.DELETE;
+
+    private static final String[] IMAGE_EXTENSIONS = {
+            ".jpg", ".jpeg", ".png", ".webp", ".gif", ".bmp",
+    };
+
+    // Lists directories for start()
+    private static final ExecutorService sLister =
+            Executors.newSingleThreadExecutor();
+
+    /**
+     * Receives the first listing of the directory on the main thread.
+     */
+    public interface StartCallback {
+        /**
+         * @param images The images in the directory, oldest first, which is
+         *               the order later images are reported in.
+         */
+        void onStarted(List<String> images);
+    }
+
+    /**
+     * Notified on the main thread of changes to the directory's images,
+     * after {@link StartCallback#onStarted}.
+     */
+    public interface Listener {
+        void onImageAdded(String path);
+
+        void onImageReplaced(String path);
+
+        void onImageRemoved(String path);
+    }
+
+    private final File mDir;
+    private final Listener mListener;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final FileObserver mObserver;
+
+    // Only touched on the main thread
+    private final Set<String> mImages = new HashSet<String>();
+    // Whether each path was last removed, for the events that arrive before
+    // the first listing is in
+    private final Map<String, Boolean> mHeldEvents =
+            new LinkedHashMap<String, Boolean>();
+    private boolean mListed;
+    private boolean mStopped;
+
+    public ContentDirectoryWatcher(String dir, Listener listener) {
+        mDir = new File(dir);
+        mListener = listener;
+        mObserver = new FileObserver(dir, EVENTS) {
+            @Override
+            public void onEvent(int event, final String name) {
+                // Called on the observer's own thread
+                if (name == null || !isImage(name)) {
+                    return;
+                }
+                final boolean removed = (event & (FileObserver.MOVED_FROM
+                        | FileObserver.DELETE)) != 0;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onChanged(new File(mDir, name).getPath(), removed);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Starts watching, and lists the directory on a background thread. Must
+     * be called on the main thread.
+     *
+     * @param callback Receives the listing, unless {@link #stop} is called
+     *                 first.
+     */
+    public void start(final StartCallback callback) {
+        // Watch first, so that nothing lands between the listing and the
+        // first event unnoticed
+        mObserver.startWatching();
+        sLister.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> images = list();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onListed(images, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<String> list() {
+        File[] files = mDir.listFiles();
+        if (files == null) {
+            return new ArrayList<String>();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? lhs.compareTo(rhs) : 1);
+            }
+        });
+        List<String> images = new ArrayList<String>(files.length);
+        for (File file : files) {
+            if (file.isFile() && isImage(file.getName())) {
+                images.add(file.getPath());
+            }
+        }
+        return images;
+    }
+
+    private void onListed(List<String> images, StartCallback callback) {
+        if (mStopped) {
+            return;
+        }
+        mImages.addAll(images);
+        mListed = true;
+        callback.onStarted(images);
+        // The listing may or may not include these; an image it has is
+        // reported as replaced
+        for (Map.Entry<String, Boolean> event : mHeldEvents.entrySet()) {
+            onChanged(event.getKey(), event.getValue());
+        }
+        mHeldEvents.clear();
+    }
+
+    /**
+     * Stops watching; no listener calls are made after this returns.
+     */
+    public void stop() {
+        mStopped = true;
+        mObserver.stopWatching();
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    private void onChanged(String path, boolean removed) {
+        if (!mListed) {
+            // Moved to the end, as the latest event
+            mHeldEvents.remove(path);
+            mHeldEvents.put(path, removed);
+            return;
+        }
+        if (removed) {
+            if (mImages.remove(path)) {
+                mListener.onImageRemoved(path);
+            }
+        } else if (mImages.add(path)) {
+            mListener.onImageAdded(path);
+        } else {
+            mListener.onImageReplaced(path);
+        }
+    }
+
+    static boolean isImage(String name) {
+        if (name.startsWith(".")) {
+            // Hidden, such as a file that is still being written
+            return false;
+        }
+        String lowerCase = name.toLowerCase(Locale.US);
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (lowerCase.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
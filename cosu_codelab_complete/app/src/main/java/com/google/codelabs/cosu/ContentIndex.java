@@ -0,0 +1,409 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * SQLite index of the images on the device, queried by tag and by the time
+ * they were added.
+ *
+ * <p>A tag is a {@code name:value} string such as {@code campaign:spring},
+ * {@code locale:de} or {@code screen:lobby}. The tag table's primary key is
+ * (tag, added, asset), and it is stored without a rowid, so the rows for a
+ * tag are clustered in the order they were added: a query for a tag and a
+ * start time is a single range scan of one index, whatever the size of the
+ * library.
+ *
+ * <p>The index is kept up to date as images come and go. Captured photos are
+ * added when the {@link CapturePipeline} ingests them and removed when
+ * {@link PhotoStore} evicts them. Images in the locked screen's content
+ * directory are added and removed as {@link ContentDirectoryWatcher} reports
+ * them, and the entries of an {@link AssetBundle} under their entry paths
+ * and the tags they were bundled with. Writes run on a background thread, in
+ * the order they are made,
+ * and queries run on the same thread after them and report to the main
+ * thread. So the database is never opened or read on the main thread, and
+ * a query sees every write made before it, such as the entries of a bundle
+ * indexed just before the locked screen queries their tags.
+ */
+public class ContentIndex {
+    private static final String TAG = "ContentIndex";
+
+    /** Tag of every photo taken with the kiosk's camera. */
+    public static final String TAG_CAMERA = "source:camera";
+    /** Tag of every image in the locked screen's content directory. */
+    public static final String TAG_CONTENT_DIR = "source:content";
+    /** Tag of every entry of the locked screen's {@link AssetBundle}. */
+    public static final String TAG_BUNDLE = "source:bundle";
+
+    private static final String DATABASE_NAME = "content_index.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String SQL_QUERY_BY_TAG =
+            "SELECT a.path FROM asset_tags t"
+            + " JOIN assets a ON a._id = t.asset_id"
+            + " WHERE t.tag = ? AND t.added >= ?"
+            + " ORDER BY t.added, t.asset_id LIMIT ?";
+    private static final String SQL_PATHS_WITH_TAG =
+            "SELECT a.path FROM asset_tags t"
+            + " JOIN assets a ON a._id = t.asset_id WHERE t.tag = ?";
+
+    private static ContentIndex sInstance;
+
+    /**
+     * Receives the result of a {@link #query} on the main thread.
+     */
+    public interface QueryCallback {
+        /**
+         * @param paths The paths found, empty if the query failed.
+         */
+        void onQueryResult(List<String> paths);
+    }
+
+    private final Context mContext;
+    private final DatabaseHelper mHelper;
+    private final ExecutorService mWriter =
+            Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * @return The index, created on first use. The database is opened on
+     *         first query or write.
+     */
+    public static synchronized ContentIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ContentIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ContentIndex(Context context) {
+        mContext = context;
+        mHelper = new DatabaseHelper(context);
+    }
+
+    /**
+     * Adds the image at {@code path} with {@code tags}, or updates an image
+     * already in the index and adds {@code tags} to the ones it has.
+     */
+    public void put(final String path, final String... tags) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    putLocked(db, path, tags);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Removes the image at {@code path}, if it is in the index.
+     */
+    public void remove(final String path) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                // The tags go with it; see the foreign key
+                mHelper.getWritableDatabase().delete("assets", "path = ?",
+                        new String[] {path});
+            }
+        });
+    }
+
+    /**
+     * Makes {@code paths} the images tagged {@code tag}: adds those that are
+     * missing and removes those tagged {@code tag} that are not in
+     * {@code paths}. Used after listing a directory in full, which is the
+     * only time the whole set is known.
+     */
+    public void sync(final String tag, final List<String> paths) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    Set<String> stale = getPathsWithTag(db, tag);
+                    for (String path : paths) {
+                        if (!stale.remove(path)) {
+                            putLocked(db, path, tag);
+                        }
+                    }
+                    for (String path : stale) {
+                        db.delete("assets", "path = ?", new String[] {path});
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Makes the entries of {@code bundle} the images tagged
+     * {@link #TAG_BUNDLE}, each with exactly the tags it was bundled with,
+     * in one transaction. Entries of an earlier bundle that are gone are
+     * removed, and an entry that is still there keeps the time it was first
+     * added but loses the tags it no longer has. Entries are recorded with
+     * the bundle file's size and modification time.
+     */
+    public void putBundle(final AssetBundle bundle) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase db = mHelper.getWritableDatabase();
+                db.beginTransaction();
+                try {
+                    Set<String> stale = getPathsWithTag(db, TAG_BUNDLE);
+                    for (int i = 0; i < bundle.getEntryCount(); i++) {
+                        String path = bundle.getEntryPath(i);
+                        stale.remove(path);
+                        String[] bundled = bundle.getTags(i);
+                        String[] tags = new String[bundled.length + 1];
+                        tags[0] = TAG_BUNDLE;
+                        System.arraycopy(bundled, 0, tags, 1, bundled.length);
+                        putLocked(db, path, bundle.getLastModified(),
+                                bundle.getLength(), true, tags);
+                    }
+                    for (String path : stale) {
+                        db.delete("assets", "path = ?", new String[] {path});
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Looks up the images tagged {@code tag} that were added at or after
+     * {@code since}, in the order they were added, on the writer's thread
+     * once every write made before this call has been applied.
+     *
+     * @param since A time in milliseconds since the epoch, or 0 for all.
+     */
+    public void query(String tag, long since, int limit,
+            QueryCallback callback) {
+        query(tag, since, limit, false, callback);
+    }
+
+    /**
+     * Like {@link #query}, but reports the path to display for each image:
+     * its display-sized rendition, if {@link Renditions} has an up-to-date
+     * one, or else the image itself. The renditions are looked up on the
+     * writer's thread too.
+     */
+    public void queryDisplayPaths(String tag, long since, int limit,
+            QueryCallback callback) {
+        query(tag, since, limit, true, callback);
+    }
+
+    private void query(final String tag, final long since, final int limit,
+            final boolean displayPaths, final QueryCallback callback) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<String> result;
+                try {
+                    result = queryLocked(tag, since, limit);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to query " + tag, e);
+                    result = new ArrayList<String>();
+                }
+                if (displayPaths) {
+                    for (int i = 0; i < result.size(); i++) {
+                        result.set(i, Renditions.getDisplayPath(mContext,
+                                result.get(i)));
+                    }
+                }
+                final List<String> paths = result;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onQueryResult(paths);
+                    }
+                });
+            }
+        });
+    }
+
+    private List<String> queryLocked(String tag, long since, int limit) {
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        Cursor c = db.rawQuery(SQL_QUERY_BY_TAG, new String[] {
+                tag, Long.toString(since), Integer.toString(limit)});
+        try {
+            List<String> paths = new ArrayList<String>(c.getCount());
+            while (c.moveToNext()) {
+                paths.add(c.getString(0));
+            }
+            return paths;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Prints the size of the index.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        long assets;
+        try {
+            SQLiteStatement count = mHelper.getReadableDatabase()
+                    .compileStatement("SELECT COUNT(*) FROM assets");
+            assets = count.simpleQueryForLong();
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Cannot count assets", e);
+            assets = -1;
+        }
+        writer.print(prefix);
+        writer.println("Content index: " + assets + " assets");
+    }
+
+    private static Set<String> getPathsWithTag(SQLiteDatabase db,
+            String tag) {
+        Set<String> paths = new HashSet<String>();
+        Cursor c = db.rawQuery(SQL_PATHS_WITH_TAG, new String[] {tag});
+        try {
+            while (c.moveToNext()) {
+                paths.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return paths;
+    }
+
+    private static void putLocked(SQLiteDatabase db, String path,
+            String... tags) {
+        File file = new File(path);
+        putLocked(db, path, file.lastModified(), file.length(), false, tags);
+    }
+
+    /**
+     * @param replaceTags Whether {@code tags} replace the image's tags
+     *                    rather than adding to them.
+     */
+    private static void putLocked(SQLiteDatabase db, String path,
+            long modified, long size, boolean replaceTags, String... tags) {
+        long id = -1;
+        long added = System.currentTimeMillis();
+        Cursor c = db.rawQuery("SELECT _id, added FROM assets WHERE path = ?",
+                new String[] {path});
+        try {
+            if (c.moveToNext()) {
+                id = c.getLong(0);
+                added = c.getLong(1);
+            }
+        } finally {
+            c.close();
+        }
+
+        if (id != -1) {
+            // Keep the time it was first added
+            SQLiteStatement update = db.compileStatement(
+                    "UPDATE assets SET modified = ?, size = ? WHERE _id = ?");
+            update.bindLong(1, modified);
+            update.bindLong(2, size);
+            update.bindLong(3, id);
+            update.executeUpdateDelete();
+            if (replaceTags) {
+                db.delete("asset_tags", "asset_id = ?",
+                        new String[] {Long.toString(id)});
+            }
+        } else {
+            SQLiteStatement insert = db.compileStatement("INSERT INTO assets"
+                    + " (path, added, modified, size) VALUES (?, ?, ?, ?)");
+            insert.bindString(1, path);
+            insert.bindLong(2, added);
+            insert.bindLong(3, modified);
+            insert.bindLong(4, size);
+            id = insert.executeInsert();
+        }
+
+        SQLiteStatement insertTag = db.compileStatement("INSERT OR IGNORE"
+                + " INTO asset_tags (tag, added, asset_id) VALUES (?, ?, ?)");
+        for (String tag : tags) {
+            insertTag.bindString(1, tag);
+            insertTag.bindLong(2, added);
+            insertTag.bindLong(3, id);
+            insertTag.executeInsert();
+        }
+    }
+
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            // dump() does not wait for the writer
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.execSQL("PRAGMA foreign_keys = ON");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE assets ("
+                    + "_id INTEGER PRIMARY KEY,"
+                    + "path TEXT NOT NULL UNIQUE,"
+                    + "added INTEGER NOT NULL,"
+                    + "modified INTEGER NOT NULL,"
+                    + "size INTEGER NOT NULL)");
+            db.execSQL("CREATE INDEX assets_added ON assets (added)");
+            // Clustered by tag, then time
+            db.execSQL("CREATE TABLE asset_tags ("
+                    + "tag TEXT NOT NULL,"
+                    + "added INTEGER NOT NULL,"
+                    + "asset_id INTEGER NOT NULL"
+                    + " REFERENCES assets (_id) ON DELETE CASCADE,"
+                    + "PRIMARY KEY (tag, added, asset_id)) WITHOUT ROWID");
+            // For the cascade
+            db.execSQL("CREATE INDEX asset_tags_asset"
+                    + " ON asset_tags (asset_id)");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion,
+                int newVersion) {
+            // Only one version so far
+        }
+    }
+}
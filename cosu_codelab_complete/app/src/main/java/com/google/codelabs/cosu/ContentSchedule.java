@@ -0,0 +1,368 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+/**
+ * Which content to show at what time, compiled from a list of {@link Rule}s
+ * into a table of non-overlapping intervals.
+ *
+ * <p>Compiling expands every rule's daily window into concrete intervals
+ * over a limited span of time, then sweeps over their start and end times,
+ * keeping the highest-priority rule at each point. The result is a sorted
+ * array of the times at which the active rule changes, so the rule active
+ * at any time and the next change after it are found with one binary
+ * search. Windows are expanded with a {@link Calendar} in the device's time
+ * zone, so they follow daylight saving time.
+ *
+ * <p>Rules are written as a JSON array, for example:
+ * <pre>
+ * [{"tag": "campaign:breakfast", "start": "06:00", "end": "11:00"},
+ *  {"tag": "campaign:lunch", "start": "11:00", "end": "14:00",
+ *   "days": ["mon", "tue", "wed", "thu", "fri"]},
+ *  {"tag": "campaign:after-hours", "start": "20:00", "end": "06:00"},
+ *  {"tag": "campaign:holiday", "from": "2016-12-24", "until": "2016-12-26",
+ *   "priority": 10}]
+ * </pre>
+ * A window that ends at or before its start runs past midnight. A rule
+ * without a window runs all day, and one without dates runs every day. When
+ * rules overlap, the one with the highest priority wins, then the one that
+ * comes first. At times no rule covers, no rule is active.
+ */
+public final class ContentSchedule {
+    private static final int MINUTES_PER_DAY = 24 * 60;
+    private static final String[] DAY_NAMES = {
+            "sun", "mon", "tue", "wed", "thu", "fri", "sat",
+    };
+    private static final int ALL_DAYS = 0x7f;
+
+    /**
+     * One entry of a schedule: show the images with {@link #getTag()}
+     * during a daily window, on some days of the week, between two dates.
+     */
+    public static final class Rule {
+        private final String mTag;
+        private final int mStartMinute;
+        private final int mEndMinute;
+        // Bit n is set for Calendar day of week n + 1
+        private final int mDays;
+        // yyyymmdd, inclusive
+        private final int mFromDate;
+        private final int mUntilDate;
+        private final int mPriority;
+
+        Rule(String tag, int startMinute, int endMinute, int days,
+                int fromDate, int untilDate, int priority) {
+            mTag = tag;
+            mStartMinute = startMinute;
+            mEndMinute = endMinute;
+            mDays = days;
+            mFromDate = fromDate;
+            mUntilDate = untilDate;
+            mPriority = priority;
+        }
+
+        /**
+         * @return The {@link ContentIndex} tag of the images to show.
+         */
+        public String getTag() {
+            return mTag;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        /**
+         * @return Whether the window that starts on {@code calendar}'s day
+         *         is part of this rule.
+         */
+        boolean startsOn(Calendar calendar) {
+            int date = calendar.get(Calendar.YEAR) * 10000
+                    + (calendar.get(Calendar.MONTH) + 1) * 100
+                    + calendar.get(Calendar.DAY_OF_MONTH);
+            int day = calendar.get(Calendar.DAY_OF_WEEK) - 1;
+            return date >= mFromDate && date <= mUntilDate
+                    && (mDays & (1 << day)) != 0;
+        }
+
+        @Override
+        public String toString() {
+            return mTag + " " + mStartMinute + "-" + mEndMinute + " days 0x"
+                    + Integer.toHexString(mDays) + " " + mFromDate + ".."
+                    + mUntilDate + " priority " + mPriority;
+        }
+    }
+
+    private final long mValidFrom;
+    private final long mValidUntil;
+    // mRules[i] is active from mStarts[i] until mStarts[i + 1]; null for none
+    private final long[] mStarts;
+    private final Rule[] mRules;
+
+    private ContentSchedule(long validFrom, long validUntil, long[] starts,
+            Rule[] rules) {
+        mValidFrom = validFrom;
+        mValidUntil = validUntil;
+        mStarts = starts;
+        mRules = rules;
+    }
+
+    /**
+     * Parses rules written in the JSON format described above.
+     *
+     * @throws JSONException If {@code json} is not in that format.
+     */
+    public static List<Rule> parse(String json) throws JSONException {
+        JSONArray array = new JSONArray(json);
+        List<Rule> rules = new ArrayList<Rule>(array.length());
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject object = array.getJSONObject(i);
+            int days = ALL_DAYS;
+            JSONArray dayNames = object.optJSONArray("days");
+            if (dayNames != null) {
+                days = 0;
+                for (int j = 0; j < dayNames.length(); j++) {
+                    days |= 1 << parseDay(dayNames.getString(j));
+                }
+            }
+            rules.add(new Rule(object.getString("tag"),
+                    parseMinute(object.optString("start", "00:00")),
+                    parseMinute(object.optString("end", "24:00")),
+                    days,
+                    object.has("from")
+                            ? parseDate(object.getString("from")) : 0,
+                    object.has("until")
+                            ? parseDate(object.getString("until")) : 99999999,
+                    object.optInt("priority", 0)));
+        }
+        return rules;
+    }
+
+    /**
+     * Compiles {@code rules} for the time from {@code validFrom} until
+     * {@code validUntil}, in milliseconds since the epoch.
+     */
+    public static ContentSchedule compile(List<Rule> rules, long validFrom,
+            long validUntil, TimeZone timeZone) {
+        // Rank 0 is the rule that wins every overlap
+        final List<Rule> ranked = new ArrayList<Rule>(rules);
+        Collections.sort(ranked, new Comparator<Rule>() {
+            @Override
+            public int compare(Rule lhs, Rule rhs) {
+                // Stable, so equal priorities keep their order
+                return rhs.mPriority < lhs.mPriority ? -1
+                        : (rhs.mPriority == lhs.mPriority ? 0 : 1);
+            }
+        });
+
+        // Every window as a start and an end event: time, then
+        // rank * 2 + (1 for the end)
+        List<long[]> events = new ArrayList<long[]>();
+        Calendar day = Calendar.getInstance(timeZone);
+        day.setTimeInMillis(validFrom);
+        // Windows that start the day before may run into the first day
+        day.add(Calendar.DAY_OF_MONTH, -1);
+        setStartOfDay(day);
+        Calendar time = Calendar.getInstance(timeZone);
+        while (day.getTimeInMillis() < validUntil) {
+            for (int rank = 0; rank < ranked.size(); rank++) {
+                Rule rule = ranked.get(rank);
+                if (!rule.startsOn(day)) {
+                    continue;
+                }
+                long start = timeOnDay(time, day, rule.mStartMinute, 0);
+                long end = timeOnDay(time, day, rule.mEndMinute,
+                        rule.mEndMinute <= rule.mStartMinute ? 1 : 0);
+                start = Math.max(start, validFrom);
+                end = Math.min(end, validUntil);
+                if (start < end) {
+                    events.add(new long[] {start, rank * 2});
+                    events.add(new long[] {end, rank * 2 + 1});
+                }
+            }
+            day.add(Calendar.DAY_OF_MONTH, 1);
+        }
+        Collections.sort(events, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[0] < rhs[0] ? -1 : (lhs[0] == rhs[0] ? 0 : 1);
+            }
+        });
+
+        // Sweep, counting the open windows of each rank; the lowest open
+        // rank is the active rule
+        TreeMap<Integer, Integer> open = new TreeMap<Integer, Integer>();
+        long[] starts = new long[events.size() + 1];
+        Rule[] active = new Rule[events.size() + 1];
+        starts[0] = validFrom;
+        int count = 1;
+        int i = 0;
+        while (i < events.size()) {
+            long at = events.get(i)[0];
+            for (; i < events.size() && events.get(i)[0] == at; i++) {
+                int rank = (int) (events.get(i)[1] / 2);
+                int windows = open.containsKey(rank) ? open.get(rank) : 0;
+                windows += events.get(i)[1] % 2 == 0 ? 1 : -1;
+                if (windows == 0) {
+                    open.remove(rank);
+                } else {
+                    open.put(rank, windows);
+                }
+            }
+            Rule rule = open.isEmpty() ? null : ranked.get(open.firstKey());
+            if (rule == active[count - 1]) {
+                continue;
+            }
+            if (at == starts[count - 1]) {
+                // Replaces the rule of an interval that has no length
+                active[count - 1] = rule;
+            } else {
+                starts[count] = at;
+                active[count] = rule;
+                count++;
+            }
+        }
+        return new ContentSchedule(validFrom, validUntil,
+                Arrays.copyOf(starts, count), Arrays.copyOf(active, count));
+    }
+
+    public long getValidFrom() {
+        return mValidFrom;
+    }
+
+    public long getValidUntil() {
+        return mValidUntil;
+    }
+
+    /**
+     * @return Whether {@code time} is within the compiled span.
+     */
+    public boolean covers(long time) {
+        return time >= mValidFrom && time < mValidUntil;
+    }
+
+    /**
+     * @return The rule active at {@code time}, or null if there is none.
+     */
+    public Rule getActiveRule(long time) {
+        int index = indexAt(time);
+        return index >= 0 ? mRules[index] : null;
+    }
+
+    /**
+     * @return The next time after {@code time} at which the active rule
+     *         changes, or the end of the compiled span if it does not.
+     */
+    public long getNextTransition(long time) {
+        int index = indexAt(time);
+        return index + 1 < mStarts.length ? mStarts[index + 1] : mValidUntil;
+    }
+
+    /**
+     * @return The number of intervals the schedule was compiled into.
+     */
+    public int size() {
+        return mStarts.length;
+    }
+
+    private int indexAt(long time) {
+        int index = Arrays.binarySearch(mStarts, time);
+        // Not found: the interval that starts before the insertion point
+        return index >= 0 ? index : -index - 2;
+    }
+
+    private static void setStartOfDay(Calendar calendar) {
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+    }
+
+    /**
+     * @return The time {@code minute} minutes into the day {@code days}
+     *         after {@code day}, as a wall-clock time.
+     */
+    private static long timeOnDay(Calendar time, Calendar day, int minute,
+            int days) {
+        time.setTimeInMillis(day.getTimeInMillis());
+        time.add(Calendar.DAY_OF_MONTH, days + minute / MINUTES_PER_DAY);
+        time.set(Calendar.HOUR_OF_DAY, (minute % MINUTES_PER_DAY) / 60);
+        time.set(Calendar.MINUTE, minute % 60);
+        return time.getTimeInMillis();
+    }
+
+    private static int parseMinute(String time) throws JSONException {
+        String[] parts = time.split(":");
+        try {
+            if (parts.length == 2) {
+                int minute = Integer.parseInt(parts[0]) * 60
+                        + Integer.parseInt(parts[1]);
+                if (minute >= 0 && minute <= MINUTES_PER_DAY) {
+                    return minute;
+                }
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new JSONException("Not a time of day: " + time);
+    }
+
+    /**
+     * @return {@code date}, in the form yyyy-mm-dd, as yyyymmdd.
+     */
+    private static int parseDate(String date) throws JSONException {
+        if (date.matches("\\d{4}-\\d{2}-\\d{2}")) {
+            int year = Integer.parseInt(date.substring(0, 4));
+            int month = Integer.parseInt(date.substring(5, 7));
+            int day = Integer.parseInt(date.substring(8, 10));
+            // Not lenient, so a month or day out of range throws. In UTC,
+            // where every day has a midnight
+            Calendar calendar =
+                    Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.setLenient(false);
+            calendar.clear();
+            calendar.set(year, month - 1, day);
+            try {
+                calendar.getTimeInMillis();
+                return year * 10000 + month * 100 + day;
+            } catch (IllegalArgumentException e) {
+                // Reported below
+            }
+        }
+        throw new JSONException("Not a date: " + date);
+    }
+
+    private static int parseDay(String name) throws JSONException {
+        for (int i = 0; i < DAY_NAMES.length; i++) {
+            if (DAY_NAMES[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new JSONException("Not a day of the week: " + name);
+    }
+}
@@ -0,0 +1,202 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.os.BatteryManager;
+import android.os.Build;
+import android.os.UserManager;
+
+/**
+ * Immutable description of the device policy state a COSU device should be
+ * in. {@link CosuPolicyEngine} compares it with the state the device is
+ * actually in and only applies the differences.
+ */
+public final class CosuPolicy {
+
+    /** User restrictions, indexed by their bit in {@link #getRestrictions}. */
+    static final String[] RESTRICTIONS = {
+            UserManager.DISALLOW_SAFE_BOOT,
+            UserManager.DISALLOW_FACTORY_RESET,
+            UserManager.DISALLOW_ADD_USER,
+            UserManager.DISALLOW_MOUNT_PHYSICAL_MEDIA,
+            UserManager.DISALLOW_ADJUST_VOLUME,
+    };
+
+    /** Value of {@code STAY_ON_WHILE_PLUGGED_IN} for any power source. */
+    static final int STAY_ON_ANY_POWER = BatteryManager.BATTERY_PLUGGED_AC
+            | BatteryManager.BATTERY_PLUGGED_USB
+            | BatteryManager.BATTERY_PLUGGED_WIRELESS;
+
+    /** Update window value meaning no system update policy is set. */
+    static final int NO_UPDATE_WINDOW = -1;
+
+    // Install system updates between 1am and 2am
+    private static final int KIOSK_UPDATE_WINDOW_START = 60;
+    private static final int KIOSK_UPDATE_WINDOW_END = 120;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int mRestrictions;
+    private final boolean mKeyguardDisabled;
+    private final boolean mStatusBarDisabled;
+    private final int mStayOnWhilePluggedIn;
+    private final int mUpdateWindowStart;
+    private final int mUpdateWindowEnd;
+    private final boolean mLockTaskPermitted;
+    private final boolean mPreferredHome;
+
+    CosuPolicy(int restrictions, boolean keyguardDisabled,
+            boolean statusBarDisabled, int stayOnWhilePluggedIn,
+            int updateWindowStart, int updateWindowEnd,
+            boolean lockTaskPermitted, boolean preferredHome) {
+        mRestrictions = restrictions;
+        mKeyguardDisabled = keyguardDisabled;
+        mStatusBarDisabled = statusBarDisabled;
+        mStayOnWhilePluggedIn = stayOnWhilePluggedIn;
+        mUpdateWindowStart = updateWindowStart;
+        mUpdateWindowEnd = updateWindowEnd;
+        mLockTaskPermitted = lockTaskPermitted;
+        mPreferredHome = preferredHome;
+    }
+
+    /**
+     * @param active true for the locked-down kiosk policy, false for the
+     *               policy that releases the device again.
+     */
+    public static CosuPolicy forKiosk(boolean active) {
+        if (active) {
+            return new CosuPolicy((1 << RESTRICTIONS.length) - 1, true, true,
+                    STAY_ON_ANY_POWER, KIOSK_UPDATE_WINDOW_START,
+                    KIOSK_UPDATE_WINDOW_END, true, true);
+        }
+        return new CosuPolicy(0, false, false, 0, NO_UPDATE_WINDOW,
+                NO_UPDATE_WINDOW, false, false);
+    }
+
+    /** @return Bitset of the {@link #RESTRICTIONS} that are added. */
+    public int getRestrictions() {
+        return mRestrictions;
+    }
+
+    public boolean hasRestriction(int index) {
+        return (mRestrictions & (1 << index)) != 0;
+    }
+
+    public boolean isKeyguardDisabled() {
+        return mKeyguardDisabled;
+    }
+
+    public boolean isStatusBarDisabled() {
+        return mStatusBarDisabled;
+    }
+
+    public int getStayOnWhilePluggedIn() {
+        return mStayOnWhilePluggedIn;
+    }
+
+    public boolean hasUpdateWindow() {
+        return mUpdateWindowStart != NO_UPDATE_WINDOW;
+    }
+
+    public int getUpdateWindowStart() {
+        return mUpdateWindowStart;
+    }
+
+    public int getUpdateWindowEnd() {
+        return mUpdateWindowEnd;
+    }
+
+    /** @return Whether this package may enter lock task mode. */
+    public boolean isLockTaskPermitted() {
+        return mLockTaskPermitted;
+    }
+
+    /** @return Whether {@link LockedActivity} is the persistent HOME. */
+    public boolean isPreferredHome() {
+        return mPreferredHome;
+    }
+
+    boolean sameUpdateWindow(CosuPolicy other) {
+        return mUpdateWindowStart == other.mUpdateWindowStart
+                && mUpdateWindowEnd == other.mUpdateWindowEnd;
+    }
+
+    /**
+     * @return A stable 64-bit hash of this policy and the platform build, so
+     *         that an OS update invalidates a persisted fingerprint.
+     */
+    public long fingerprint() {
+        long hash = FNV_OFFSET_BASIS;
+        hash = fnv(hash, mRestrictions);
+        hash = fnv(hash, (mKeyguardDisabled ? 1 : 0)
+                | (mStatusBarDisabled ? 2 : 0)
+                | (mLockTaskPermitted ? 4 : 0)
+                | (mPreferredHome ? 8 : 0));
+        hash = fnv(hash, mStayOnWhilePluggedIn);
+        hash = fnv(hash, mUpdateWindowStart);
+        hash = fnv(hash, mUpdateWindowEnd);
+        hash = fnv(hash, Build.FINGERPRINT.hashCode());
+        // 0 is reserved for "no fingerprint"
+        return hash != 0 ? hash : 1;
+    }
+
+    private static long fnv(long hash, int value) {
+        for (int i = 0; i < 4; i++) {
+            hash ^= (value >>> (i * 8)) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof CosuPolicy)) {
+            return false;
+        }
+        CosuPolicy other = (CosuPolicy) o;
+        return mRestrictions == other.mRestrictions
+                && mKeyguardDisabled == other.mKeyguardDisabled
+                && mStatusBarDisabled == other.mStatusBarDisabled
+                && mStayOnWhilePluggedIn == other.mStayOnWhilePluggedIn
+                && sameUpdateWindow(other)
+                && mLockTaskPermitted == other.mLockTaskPermitted
+                && mPreferredHome == other.mPreferredHome;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = mRestrictions;
+        result = 31 * result + (mKeyguardDisabled ? 1 : 0);
+        result = 31 * result + (mStatusBarDisabled ? 1 : 0);
+        result = 31 * result + mStayOnWhilePluggedIn;
+        result = 31 * result + mUpdateWindowStart;
+        result = 31 * result + mUpdateWindowEnd;
+        result = 31 * result + (mLockTaskPermitted ? 1 : 0);
+        return 31 * result + (mPreferredHome ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "CosuPolicy{restrictions=0x" + Integer.toHexString(mRestrictions)
+                + ", keyguardDisabled=" + mKeyguardDisabled
+                + ", statusBarDisabled=" + mStatusBarDisabled
+                + ", stayOn=" + mStayOnWhilePluggedIn
+                + ", updateWindow=" + mUpdateWindowStart + "-"
+                + mUpdateWindowEnd
+                + ", lockTaskPermitted=" + mLockTaskPermitted
+                + ", preferredHome=" + mPreferredHome + "}";
+    }
+}
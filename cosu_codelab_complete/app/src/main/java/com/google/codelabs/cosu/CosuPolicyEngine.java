@@ -0,0 +1,356 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.admin.DevicePolicyManager;
+import android.app.admin.SystemUpdatePolicy;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserManager;
+import android.provider.Settings;
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Brings the device to a {@link CosuPolicy} with as few
+ * {@link DevicePolicyManager} calls as possible.
+ *
+ * <p>Policies are applied in order on a single background thread. Before
+ * applying, the engine reads the current state and only issues calls for the
+ * settings that differ. Keyguard and status bar state cannot be read back, so
+ * those are compared with what was last applied.
+ *
+ * <p>Each successfully applied policy is fingerprinted and the fingerprint is
+ * persisted in the {@link KioskStateStore}, which lets {@link #apply} skip
+ * the work after a reboot.
+ */
+public class CosuPolicyEngine {
+    private static final String TAG = "CosuPolicyEngine";
+
+    // How long after a fingerprint match the full comparison runs
+    private static final long RECONCILE_DELAY_SECONDS = 30;
+
+    private static CosuPolicyEngine sInstance;
+
+    /**
+     * Receives the outcome of {@link #apply} on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param policy The policy that is now in effect.
+         * @param changes Number of policy calls that were needed.
+         * @param elapsedMicros Time spent reading and applying the policy.
+         */
+        void onPolicyApplied(CosuPolicy policy, int changes,
+                long elapsedMicros);
+    }
+
+    private final Context mContext;
+    private final DevicePolicyManager mDevicePolicyManager;
+    private final UserManager mUserManager;
+    private final ComponentName mAdminComponentName;
+    private final ComponentName mHomeComponentName;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // Only touched on mExecutor
+    private CosuPolicy mLastApplied;
+    private int mChanges;
+
+    public static synchronized CosuPolicyEngine getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new CosuPolicyEngine(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private CosuPolicyEngine(Context context) {
+        mContext = context;
+        mDevicePolicyManager = (DevicePolicyManager) context.getSystemService(
+                Context.DEVICE_POLICY_SERVICE);
+        mUserManager = (UserManager) context.getSystemService(
+                Context.USER_SERVICE);
+        mAdminComponentName = DeviceAdminReceiver.getComponentName(context);
+        mHomeComponentName = new ComponentName(context.getPackageName(),
+                LockedActivity.class.getName());
+    }
+
+    /**
+     * Applies {@code policy} in the background.
+     *
+     * <p>If {@code policy} is the policy last applied on this device, as
+     * recorded by its persisted fingerprint, only a quick check is made now
+     * and the full comparison is deferred, so that a reboot does not hold up
+     * the locked screen with policy calls. Applying the policy this process
+     * already applied does nothing.
+     *
+     * @param callback Optional callback run once the policy is in effect.
+     * @return A future that completes once the policy is in effect.
+     */
+    public Future<?> apply(final CosuPolicy policy, final Callback callback) {
+        return mExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                long start = SystemClock.elapsedRealtimeNanos();
+                mChanges = 0;
+                try {
+                    if (policy.equals(mLastApplied)) {
+                        Log.d(TAG, "Policy already applied");
+                    } else if (mLastApplied == null && isPersisted(policy)) {
+                        mLastApplied = policy;
+                        Log.d(TAG, "Policy fingerprint matches, deferring"
+                                + " full check");
+                        scheduleReconcile();
+                    } else {
+                        applyNow(policy);
+                    }
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Cannot apply " + policy, e);
+                    return;
+                }
+
+                final int changes = mChanges;
+                final long elapsedMicros =
+                        (SystemClock.elapsedRealtimeNanos() - start) / 1000;
+                Log.d(TAG, "Applied " + policy + " with " + changes
+                        + " calls in " + elapsedMicros + "us");
+                if (callback != null) {
+                    mMainHandler.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onPolicyApplied(policy, changes,
+                                    elapsedMicros);
+                        }
+                    });
+                }
+            }
+        });
+    }
+
+    private void applyNow(CosuPolicy policy) {
+        applyDelta(readCurrentState(policy), policy);
+        mLastApplied = policy;
+        saveFingerprint(policy.fingerprint());
+    }
+
+    /**
+     * @return Whether {@code policy} is the last policy successfully applied
+     *         on this device, going by the persisted fingerprint alone.
+     */
+    public boolean isLastApplied(CosuPolicy policy) {
+        return KioskStateStore.getInstance(mContext).getLong(
+                KioskStateStore.KEY_POLICY_FINGERPRINT, 0)
+                == policy.fingerprint();
+    }
+
+    /**
+     * @return Whether {@code policy} matches the persisted fingerprint and
+     *         the two settings that are cheapest to read agree with it.
+     */
+    private boolean isPersisted(CosuPolicy policy) {
+        if (!isLastApplied(policy)) {
+            return false;
+        }
+        return mDevicePolicyManager.isLockTaskPermitted(
+                mContext.getPackageName()) == policy.isLockTaskPermitted()
+                && isPreferredHome() == policy.isPreferredHome();
+    }
+
+    private void saveFingerprint(long fingerprint) {
+        KioskStateStore.getInstance(mContext).putLong(
+                KioskStateStore.KEY_POLICY_FINGERPRINT, fingerprint);
+    }
+
+    private void scheduleReconcile() {
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Catch anything that changed behind our back since the
+                // fingerprint was recorded
+                CosuPolicy policy = mLastApplied;
+                mChanges = 0;
+                try {
+                    applyNow(policy);
+                } catch (SecurityException e) {
+                    Log.e(TAG, "Cannot reconcile " + policy, e);
+                    return;
+                }
+                if (mChanges > 0) {
+                    Log.w(TAG, "Reconciled " + mChanges
+                            + " settings that had drifted");
+                }
+            }
+        }, RECONCILE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the device's policy state. Settings that cannot be read are taken
+     * from the last applied policy or, failing that, assumed to differ from
+     * {@code desired}.
+     */
+    CosuPolicy readCurrentState(CosuPolicy desired) {
+        int restrictions = 0;
+        for (int i = 0; i < CosuPolicy.RESTRICTIONS.length; i++) {
+            if (mUserManager.hasUserRestriction(CosuPolicy.RESTRICTIONS[i])) {
+                restrictions |= 1 << i;
+            }
+        }
+
+        boolean keyguardDisabled = mLastApplied != null
+                ? mLastApplied.isKeyguardDisabled()
+                : !desired.isKeyguardDisabled();
+        boolean statusBarDisabled = mLastApplied != null
+                ? mLastApplied.isStatusBarDisabled()
+                : !desired.isStatusBarDisabled();
+
+        int stayOn = Settings.Global.getInt(mContext.getContentResolver(),
+                Settings.Global.STAY_ON_WHILE_PLUGGED_IN, 0);
+
+        int windowStart = CosuPolicy.NO_UPDATE_WINDOW;
+        int windowEnd = CosuPolicy.NO_UPDATE_WINDOW;
+        SystemUpdatePolicy updatePolicy =
+                mDevicePolicyManager.getSystemUpdatePolicy();
+        if (updatePolicy != null && updatePolicy.getPolicyType()
+                == SystemUpdatePolicy.TYPE_INSTALL_WINDOWED) {
+            windowStart = updatePolicy.getInstallWindowStart();
+            windowEnd = updatePolicy.getInstallWindowEnd();
+        }
+
+        boolean lockTaskPermitted = mDevicePolicyManager.isLockTaskPermitted(
+                mContext.getPackageName());
+
+        return new CosuPolicy(restrictions, keyguardDisabled,
+                statusBarDisabled, stayOn, windowStart, windowEnd,
+                lockTaskPermitted, isPreferredHome());
+    }
+
+    private void applyDelta(CosuPolicy current, CosuPolicy desired) {
+        // set user restrictions
+        int changed = current.getRestrictions() ^ desired.getRestrictions();
+        for (int i = 0; i < CosuPolicy.RESTRICTIONS.length; i++) {
+            if ((changed & (1 << i)) != 0) {
+                setUserRestriction(CosuPolicy.RESTRICTIONS[i],
+                        desired.hasRestriction(i));
+            }
+        }
+
+        // disable keyguard and status bar
+        if (current.isKeyguardDisabled() != desired.isKeyguardDisabled()) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDevicePolicyManager.setKeyguardDisabled(mAdminComponentName,
+                    desired.isKeyguardDisabled());
+            logCall("setKeyguardDisabled", start);
+        }
+        if (current.isStatusBarDisabled() != desired.isStatusBarDisabled()) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDevicePolicyManager.setStatusBarDisabled(mAdminComponentName,
+                    desired.isStatusBarDisabled());
+            logCall("setStatusBarDisabled", start);
+        }
+
+        // enable STAY_ON_WHILE_PLUGGED_IN
+        if (current.getStayOnWhilePluggedIn()
+                != desired.getStayOnWhilePluggedIn()) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDevicePolicyManager.setGlobalSetting(mAdminComponentName,
+                    Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
+                    Integer.toString(desired.getStayOnWhilePluggedIn()));
+            logCall("setGlobalSetting", start);
+        }
+
+        // set system update policy
+        if (!current.sameUpdateWindow(desired)) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDevicePolicyManager.setSystemUpdatePolicy(mAdminComponentName,
+                    desired.hasUpdateWindow()
+                            ? SystemUpdatePolicy.createWindowedInstallPolicy(
+                                    desired.getUpdateWindowStart(),
+                                    desired.getUpdateWindowEnd())
+                            : null);
+            logCall("setSystemUpdatePolicy", start);
+        }
+
+        // set this Activity as a lock task package
+        if (current.isLockTaskPermitted() != desired.isLockTaskPermitted()) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            mDevicePolicyManager.setLockTaskPackages(mAdminComponentName,
+                    desired.isLockTaskPermitted()
+                            ? new String[]{mContext.getPackageName()}
+                            : new String[]{});
+            logCall("setLockTaskPackages", start);
+        }
+
+        // set Cosu activity as home intent receiver so that it is started
+        // on reboot
+        if (current.isPreferredHome() != desired.isPreferredHome()) {
+            long start = SystemClock.elapsedRealtimeNanos();
+            if (desired.isPreferredHome()) {
+                IntentFilter intentFilter =
+                        new IntentFilter(Intent.ACTION_MAIN);
+                intentFilter.addCategory(Intent.CATEGORY_HOME);
+                intentFilter.addCategory(Intent.CATEGORY_DEFAULT);
+                mDevicePolicyManager.addPersistentPreferredActivity(
+                        mAdminComponentName, intentFilter, mHomeComponentName);
+            } else {
+                mDevicePolicyManager.clearPackagePersistentPreferredActivities(
+                        mAdminComponentName, mContext.getPackageName());
+            }
+            logCall("persistentPreferredActivity", start);
+        }
+    }
+
+    private void setUserRestriction(String restriction, boolean disallow) {
+        long start = SystemClock.elapsedRealtimeNanos();
+        if (disallow) {
+            mDevicePolicyManager.addUserRestriction(mAdminComponentName,
+                    restriction);
+        } else {
+            mDevicePolicyManager.clearUserRestriction(mAdminComponentName,
+                    restriction);
+        }
+        logCall(restriction, start);
+    }
+
+    private boolean isPreferredHome() {
+        Intent home = new Intent(Intent.ACTION_MAIN);
+        home.addCategory(Intent.CATEGORY_HOME);
+        ResolveInfo info = mContext.getPackageManager().resolveActivity(home,
+                PackageManager.MATCH_DEFAULT_ONLY);
+        return info != null && info.activityInfo != null
+                && mHomeComponentName.getPackageName().equals(
+                        info.activityInfo.packageName)
+                && mHomeComponentName.getClassName().equals(
+                        info.activityInfo.name);
+    }
+
+    private void logCall(String name, long startNanos) {
+        mChanges++;
+        Log.d(TAG, name + " took "
+                + (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000
+                + "us");
+    }
+}
@@ -0,0 +1,112 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.ActivityManager;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.view.WindowManager;
+
+/**
+ * How images are decoded for display on this device.
+ *
+ * <p>The profile is picked once per process from the heap size the system
+ * grants the app and the screen size. Devices that report themselves as low
+ * on RAM, or that grant a small heap, decode to {@code RGB_565}, which halves
+ * the memory of every bitmap, and cap images below the screen's pixel count.
+ * Everything else decodes to {@code ARGB_8888} at up to the screen's size.
+ */
+public final class DecodeProfile {
+    // Heap sizes up to this many MB count as low memory
+    private static final int LOW_MEMORY_CLASS_MB = 64;
+    // Pixel cap for low-memory devices, a 720p screen
+    private static final long LOW_MEMORY_MAX_PIXELS = 1280 * 720;
+
+    private static DecodeProfile sInstance;
+
+    private final String mName;
+    private final Bitmap.Config mConfig;
+    private final long mMaxPixels;
+
+    private DecodeProfile(String name, Bitmap.Config config, long maxPixels) {
+        mName = name;
+        mConfig = config;
+        mMaxPixels = maxPixels;
+    }
+
+    /**
+     * @return The profile for this device.
+     */
+    public static synchronized DecodeProfile get(Context context) {
+        if (sInstance == null) {
+            ActivityManager am = (ActivityManager) context.getSystemService(
+                    Context.ACTIVITY_SERVICE);
+            WindowManager wm = (WindowManager) context.getSystemService(
+                    Context.WINDOW_SERVICE);
+            DisplayMetrics metrics = new DisplayMetrics();
+            wm.getDefaultDisplay().getRealMetrics(metrics);
+            sInstance = forDevice(am.getMemoryClass(), am.isLowRamDevice(),
+                    (long) metrics.widthPixels * metrics.heightPixels);
+        }
+        return sInstance;
+    }
+
+    static DecodeProfile forDevice(int memoryClassMb, boolean lowRam,
+            long screenPixels) {
+        if (lowRam || memoryClassMb <= LOW_MEMORY_CLASS_MB) {
+            return new DecodeProfile("low-memory", Bitmap.Config.RGB_565,
+                    Math.min(screenPixels, LOW_MEMORY_MAX_PIXELS));
+        }
+        return new DecodeProfile("default", Bitmap.Config.ARGB_8888,
+                screenPixels);
+    }
+
+    public Bitmap.Config getConfig() {
+        return mConfig;
+    }
+
+    /**
+     * @return The most pixels a decoded image may have.
+     */
+    public long getMaxPixels() {
+        return mMaxPixels;
+    }
+
+    /**
+     * @return The byte budget for an image shown at {@code width} x
+     *         {@code height}, to pass to {@link BitmapDecoder#decode}.
+     */
+    public long maxBytes(int width, int height) {
+        long pixels = Math.min((long) width * height, mMaxPixels);
+        return pixels * BitmapDecoder.bytesPerPixel(mConfig);
+    }
+
+    /**
+     * @return New decode options set up for this profile.
+     */
+    public BitmapFactory.Options newOptions() {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mConfig;
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "DecodeProfile{" + mName + ", config=" + mConfig
+                + ", maxPixels=" + mMaxPixels + "}";
+    }
+}
@@ -20,6 +20,7 @@ package com.google.codelabs.cosu;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.Intent;
 
 /**
  * Handles events related to the managed profile.
@@ -34,4 +35,17 @@ public class DeviceAdminReceiver extends android.app.admin.DeviceAdminReceiver {
     public static ComponentName getComponentName(Context context) {
         return new ComponentName(context.getApplicationContext(), DeviceAdminReceiver.class);
     }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        super.onReceive(context, intent);
+
+        if (Intent.ACTION_BOOT_COMPLETED.equals(intent.getAction())) {
+            BootTimings.getInstance(context).mark(
+                    BootTimings.EVENT_BOOT_COMPLETED);
+
+            // Get the locked screen's inputs into memory before it needs them
+            KioskWarmup.start(context, goAsync());
+        }
+    }
 }
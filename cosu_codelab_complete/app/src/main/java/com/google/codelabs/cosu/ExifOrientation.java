@@ -0,0 +1,137 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.util.LruCache;
+
+import java.io.IOException;
+
+/**
+ * Reads and applies the EXIF orientation of photos.
+ *
+ * <p>Photos are decoded as stored and turned upright when drawn, by
+ * {@link OrientedBitmapDrawable}, instead of being copied into a rotated
+ * bitmap. Orientations are remembered per file and modification time, so
+ * the main thread can look up a photo whose bitmap is already cached without
+ * parsing the file again.
+ */
+public final class ExifOrientation {
+    /** Returned by {@link #peek} for a photo that has not been read. */
+    public static final int UNKNOWN = -1;
+
+    private static final int MAX_ENTRIES = 64;
+
+    private static final LruCache<String, Integer> sOrientations =
+            new LruCache<String, Integer>(MAX_ENTRIES);
+
+    private ExifOrientation() {}
+
+    /**
+     * @return The {@link ExifInterface} orientation of the photo at
+     *         {@code path}, {@code ORIENTATION_NORMAL} if it has none.
+     */
+    public static int get(String path, long lastModified) {
+        if (AssetBundle.isEntryPath(path)) {
+            // Bundle entries are re-encoded without EXIF data
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        Integer orientation = sOrientations.get(key(path, lastModified));
+        if (orientation != null) {
+            return orientation;
+        }
+        try {
+            return read(new ExifInterface(path), path, lastModified);
+        } catch (IOException e) {
+            // Not a JPEG, or unreadable; the decode will report it
+            return put(path, lastModified, ExifInterface.ORIENTATION_NORMAL);
+        }
+    }
+
+    /**
+     * @return The remembered orientation of the photo at {@code path}, or
+     *         {@link #UNKNOWN} if it has to be read from the file first.
+     */
+    public static int peek(String path, long lastModified) {
+        if (AssetBundle.isEntryPath(path)) {
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+        Integer orientation = sOrientations.get(key(path, lastModified));
+        return orientation != null ? orientation : UNKNOWN;
+    }
+
+    /**
+     * Reads the orientation from an already parsed {@code exif} of
+     * {@code path} and remembers it.
+     */
+    static int read(ExifInterface exif, String path, long lastModified) {
+        return put(path, lastModified, exif.getAttributeInt(
+                ExifInterface.TAG_ORIENTATION,
+                ExifInterface.ORIENTATION_NORMAL));
+    }
+
+    static int put(String path, long lastModified, int orientation) {
+        sOrientations.put(key(path, lastModified), orientation);
+        return orientation;
+    }
+
+    /**
+     * @return Whether {@code orientation} swaps width and height.
+     */
+    public static boolean isTransposed(int orientation) {
+        return orientation >= ExifInterface.ORIENTATION_TRANSPOSE
+                && orientation <= ExifInterface.ORIENTATION_ROTATE_270;
+    }
+
+    /**
+     * Sets {@code matrix} to turn an image stored with {@code orientation}
+     * upright, around its center.
+     */
+    static void setRotation(Matrix matrix, int orientation) {
+        matrix.reset();
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.setScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.setRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.setScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.setRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.setRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.setRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.setRotate(-90);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static String key(String path, long lastModified) {
+        return lastModified + ":" + path;
+    }
+}
@@ -0,0 +1,494 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.util.DisplayMetrics;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes images on a background thread and delivers them to an
+ * {@link ImageView} on the main thread.
+ *
+ * <p>Images are decoded at the size the view is laid out at, so a request made
+ * before the first layout pass is held until the view has been measured.
+ * The bitmap config and pixel cap come from the device's
+ * {@link DecodeProfile}. Results go through the process-wide
+ * {@link BitmapCache}; a cache hit is set on the view synchronously, before
+ * the next frame is drawn. A bitmap the
+ * loader has set is held in the {@link BitmapPool} until the view shows
+ * something else, so that it can then be decoded into again.
+ *
+ * <p>While a photo decodes, the view shows a preview straight away: a
+ * smaller copy already in the cache, or else the thumbnail embedded in the
+ * photo's EXIF data. Photos are decoded as stored and drawn upright by an
+ * {@link OrientedBitmapDrawable}.
+ *
+ * <p>Each Activity owns one loader and calls {@link #destroy()} from
+ * {@code onDestroy()}, which cancels any decode still in flight so that a
+ * finished Activity never receives a bitmap.
+ */
+public class ImageLoader {
+    private static final String TAG = "ImageLoader";
+
+    private static final int DECODE_THREADS = 2;
+    // Long enough for any frame that still draws a replaced bitmap to finish
+    private static final long RELEASE_DELAY_MS = 100;
+
+    private static final ExecutorService sDecodeExecutor =
+            Executors.newFixedThreadPool(DECODE_THREADS, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(
+                                    Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "ImageDecode #" + mCount.incrementAndGet());
+                }
+            });
+
+    /**
+     * Receives the decoded bitmap on the main thread. Not called if the
+     * request was cancelled.
+     */
+    public interface Callback {
+        /**
+         * @param bitmap The decoded bitmap, or null if the file could not be
+         *               decoded.
+         * @param orientation The photo's EXIF orientation, which the view
+         *                    applies when drawing the bitmap.
+         */
+        void onImageLoaded(Bitmap bitmap, int orientation);
+    }
+
+    /**
+     * Also told, on the main thread, when the image was not decoded
+     * because it has more pixels than the request allows.
+     */
+    public interface SizeLimitCallback extends Callback {
+        void onImageTooLarge();
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Map<ImageView, DecodeTask> mPending =
+            new HashMap<ImageView, DecodeTask>();
+    private final Map<ImageView, Bitmap> mShown =
+            new HashMap<ImageView, Bitmap>();
+    private boolean mDestroyed;
+
+    /**
+     * Decodes the image at {@code path}, a file path or a
+     * {@code content://} URI, and sets it on {@code imageView}.
+     */
+    public void load(String path, ImageView imageView) {
+        load(path, imageView, null);
+    }
+
+    /**
+     * Decodes the image at {@code path} and sets it on {@code imageView},
+     * replacing any request already pending for that view.
+     *
+     * @param callback Optional callback run after the bitmap has been set.
+     */
+    public void load(String path, ImageView imageView, Callback callback) {
+        assertMainThread();
+        if (mDestroyed) {
+            return;
+        }
+        start(new DecodeTask(path, imageView, callback, Long.MAX_VALUE,
+                false));
+    }
+
+    /**
+     * Decodes the image at {@code path} and sets it on {@code imageView},
+     * unless it has more than {@code maxSourcePixels} pixels. The size is
+     * checked in the bounds pass of the decode, so a file that is too large
+     * is not read any further; {@code callback} is then told instead.
+     */
+    public void load(String path, ImageView imageView, long maxSourcePixels,
+            SizeLimitCallback callback) {
+        assertMainThread();
+        if (mDestroyed) {
+            return;
+        }
+        start(new DecodeTask(path, imageView, callback, maxSourcePixels,
+                false));
+    }
+
+    /**
+     * Shows the thumbnail embedded in the photo at {@code path} on
+     * {@code imageView}, if it has one, for example while a display-sized
+     * copy of the photo is being made.
+     */
+    public void loadThumbnail(String path, ImageView imageView) {
+        assertMainThread();
+        if (mDestroyed) {
+            return;
+        }
+        start(new DecodeTask(path, imageView, null, Long.MAX_VALUE, true));
+    }
+
+    private void start(DecodeTask task) {
+        ImageView imageView = task.mImageView;
+        cancel(imageView);
+        mPending.put(imageView, task);
+        if (imageView.isLaidOut()) {
+            task.start();
+        } else {
+            // Wait for layout so that the decode size is the view's real size
+            imageView.addOnLayoutChangeListener(task);
+        }
+    }
+
+    /**
+     * Cancels the pending request for {@code imageView}, if any.
+     */
+    public void cancel(ImageView imageView) {
+        assertMainThread();
+        DecodeTask task = mPending.remove(imageView);
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * Cancels every pending request. The loader cannot be used afterwards.
+     */
+    public void destroy() {
+        assertMainThread();
+        mDestroyed = true;
+        for (DecodeTask task : mPending.values()) {
+            task.cancel();
+        }
+        mPending.clear();
+        for (Bitmap bitmap : mShown.values()) {
+            BitmapPool.getInstance().release(bitmap);
+        }
+        mShown.clear();
+    }
+
+    private void deliver(DecodeTask task, Bitmap bitmap) {
+        // Only the most recent request for a view may touch it
+        if (mDestroyed || mPending.get(task.mImageView) != task) {
+            return;
+        }
+        mPending.remove(task.mImageView);
+        show(task.mImageView, bitmap, task.mOrientation);
+        if (task.mTooLarge) {
+            ((SizeLimitCallback) task.mCallback).onImageTooLarge();
+        } else if (task.mCallback != null) {
+            task.mCallback.onImageLoaded(bitmap, task.mOrientation);
+        }
+    }
+
+    private void deliverPreview(DecodeTask task, Bitmap preview) {
+        if (mDestroyed || mPending.get(task.mImageView) != task) {
+            return;
+        }
+        if (task.mThumbnailOnly) {
+            mPending.remove(task.mImageView);
+        }
+        if (preview != null) {
+            show(task.mImageView, preview, task.mOrientation);
+        }
+    }
+
+    private void show(ImageView imageView, Bitmap bitmap, int orientation) {
+        Bitmap previous;
+        if (bitmap != null) {
+            BitmapPool.getInstance().retain(bitmap);
+            previous = mShown.put(imageView, bitmap);
+        } else {
+            previous = mShown.remove(imageView);
+        }
+        setImage(imageView, bitmap, orientation);
+        if (previous != null) {
+            releaseLater(previous);
+        }
+    }
+
+    /**
+     * Shows {@code bitmap}, stored with EXIF {@code orientation}, upright on
+     * {@code imageView}.
+     */
+    public static void setImage(ImageView imageView, Bitmap bitmap,
+            int orientation) {
+        imageView.setImageDrawable(bitmap != null
+                ? new OrientedBitmapDrawable(bitmap, orientation) : null);
+    }
+
+    private void releaseLater(final Bitmap bitmap) {
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                BitmapPool.getInstance().release(bitmap);
+            }
+        }, RELEASE_DELAY_MS);
+    }
+
+    /**
+     * Decodes {@code path} for a {@code width} x {@code height} view into the
+     * {@link BitmapCache} on the calling thread, unless it is cached already.
+     *
+     * @return Whether the bitmap is now cached.
+     */
+    public static boolean preload(Context context, String path, int width,
+            int height) {
+        long lastModified = AssetBundle.lastModified(path);
+        if (ExifOrientation.isTransposed(
+                ExifOrientation.get(path, lastModified))) {
+            int swap = width;
+            width = height;
+            height = swap;
+        }
+        BitmapCache cache = BitmapCache.getInstance();
+        if (cache.get(path, lastModified, width, height) != null) {
+            return true;
+        }
+        DecodeProfile profile = DecodeProfile.get(context);
+        Bitmap bitmap = BitmapDecoder.decode(path, width, height,
+                profile.maxBytes(width, height), profile.newOptions());
+        if (bitmap == null) {
+            return false;
+        }
+        cache.put(path, lastModified, width, height, bitmap);
+        return true;
+    }
+
+    private static void assertMainThread() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            throw new IllegalStateException(
+                    "ImageLoader must be used from the main thread");
+        }
+    }
+
+    private class DecodeTask implements Runnable, View.OnLayoutChangeListener {
+        private final String mPath;
+        // Set when mPath is a content URI rather than a file
+        private final Uri mUri;
+        private final ImageView mImageView;
+        private final Callback mCallback;
+        private final BitmapFactory.Options mOptions;
+        private final DecodeProfile mProfile;
+        private final boolean mThumbnailOnly;
+        private final long mMaxSourcePixels;
+        // Size to decode for, in the photo's stored orientation
+        private int mTargetW;
+        private int mTargetH;
+        private long mLastModified;
+        private int mOrientation;
+        private boolean mPreviewShown;
+        // Set on the decode thread before the result is posted
+        private boolean mTooLarge;
+        private volatile boolean mCancelled;
+
+        DecodeTask(String path, ImageView imageView, Callback callback,
+                long maxSourcePixels, boolean thumbnailOnly) {
+            mPath = path;
+            mUri = path.startsWith(ContentResolver.SCHEME_CONTENT + ":")
+                    ? Uri.parse(path) : null;
+            mImageView = imageView;
+            mCallback = callback;
+            mThumbnailOnly = thumbnailOnly;
+            mMaxSourcePixels = maxSourcePixels;
+            mProfile = DecodeProfile.get(imageView.getContext());
+            mOptions = mProfile.newOptions();
+        }
+
+        void start() {
+            mTargetW = mImageView.getWidth() - mImageView.getPaddingLeft()
+                    - mImageView.getPaddingRight();
+            mTargetH = mImageView.getHeight() - mImageView.getPaddingTop()
+                    - mImageView.getPaddingBottom();
+            if (mTargetW <= 0 || mTargetH <= 0) {
+                // Collapsed view; fall back to the screen size
+                DisplayMetrics metrics =
+                        mImageView.getResources().getDisplayMetrics();
+                mTargetW = metrics.widthPixels;
+                mTargetH = metrics.heightPixels;
+            }
+
+            // Provider content has no modification time; it is keyed by
+            // URI alone. Bundle entries are not stat'ed
+            mLastModified = mUri == null ? AssetBundle.lastModified(mPath) : 0;
+            // An unknown orientation is read on the decode thread
+            mOrientation = ExifOrientation.peek(mPath, mLastModified);
+            if (mOrientation != ExifOrientation.UNKNOWN && !mThumbnailOnly) {
+                setOrientation(mOrientation);
+                Bitmap cached = BitmapCache.getInstance().get(mPath,
+                        mLastModified, mTargetW, mTargetH);
+                if (cached != null) {
+                    deliver(this, cached);
+                    return;
+                }
+                Bitmap preview = BitmapCache.getInstance().getPreview(mPath,
+                        mLastModified);
+                if (preview != null) {
+                    deliverPreview(this, preview);
+                    mPreviewShown = true;
+                }
+            }
+            sDecodeExecutor.execute(this);
+        }
+
+        void setOrientation(int orientation) {
+            mOrientation = orientation;
+            if (ExifOrientation.isTransposed(orientation)) {
+                int swap = mTargetW;
+                mTargetW = mTargetH;
+                mTargetH = swap;
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mImageView.removeOnLayoutChangeListener(this);
+            // Aborts a decode that is already running
+            mOptions.requestCancelDecode();
+        }
+
+        @Override
+        public void onLayoutChange(View v, int left, int top, int right,
+                int bottom, int oldLeft, int oldTop, int oldRight,
+                int oldBottom) {
+            mImageView.removeOnLayoutChangeListener(this);
+            if (!mCancelled) {
+                start();
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) {
+                return;
+            }
+            ExifInterface exif = null;
+            if (mOrientation == ExifOrientation.UNKNOWN) {
+                exif = readExif();
+                setOrientation(exif != null
+                        ? ExifOrientation.read(exif, mPath, mLastModified)
+                        : ExifOrientation.put(mPath, mLastModified,
+                                ExifInterface.ORIENTATION_NORMAL));
+                Bitmap cached = BitmapCache.getInstance().get(mPath,
+                        mLastModified, mTargetW, mTargetH);
+                if (cached != null && !mThumbnailOnly) {
+                    post(cached, false);
+                    return;
+                }
+            }
+            if (!mPreviewShown) {
+                if (exif == null) {
+                    exif = readExif();
+                }
+                Bitmap thumbnail = decodeThumbnail(exif);
+                if (thumbnail != null || mThumbnailOnly) {
+                    post(thumbnail, true);
+                }
+            }
+            if (mThumbnailOnly || mCancelled) {
+                return;
+            }
+
+            Bitmap bitmap = null;
+            try {
+                // A bitmap never needs more pixels than the view can show
+                long maxBytes = mProfile.maxBytes(mTargetW, mTargetH);
+                bitmap = mUri != null
+                        ? BitmapDecoder.decode(mImageView.getContext(), mUri,
+                                mTargetW, mTargetH, maxBytes,
+                                mMaxSourcePixels, mOptions)
+                        : BitmapDecoder.decode(mPath, mTargetW, mTargetH,
+                                maxBytes, mMaxSourcePixels, mOptions);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to decode " + mPath, e);
+            }
+            // The bounds pass leaves the source's dimensions behind
+            mTooLarge = bitmap == null && !mCancelled
+                    && (long) mOptions.outWidth * mOptions.outHeight
+                            > mMaxSourcePixels;
+            if (bitmap != null) {
+                BitmapCache.getInstance().put(mPath, mLastModified, mTargetW,
+                        mTargetH, bitmap);
+            }
+            if (mCancelled) {
+                return;
+            }
+            post(bitmap, false);
+        }
+
+        private void post(final Bitmap bitmap, final boolean preview) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (preview) {
+                        deliverPreview(DecodeTask.this, bitmap);
+                    } else {
+                        deliver(DecodeTask.this, bitmap);
+                    }
+                }
+            });
+        }
+
+        private ExifInterface readExif() {
+            if (mUri != null || AssetBundle.isEntryPath(mPath)) {
+                // ExifInterface only reads files
+                return null;
+            }
+            try {
+                return new ExifInterface(mPath);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        /**
+         * @return The photo's embedded EXIF thumbnail, or null.
+         */
+        private Bitmap decodeThumbnail(ExifInterface exif) {
+            if (exif == null || !exif.hasThumbnail()) {
+                return null;
+            }
+            byte[] data = exif.getThumbnail();
+            if (data == null) {
+                return null;
+            }
+            return BitmapFactory.decodeByteArray(data, 0, data.length,
+                    mProfile.newOptions());
+        }
+    }
+}
@@ -0,0 +1,42 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.Application;
+
+/**
+ * Application class for the kiosk; runs once per process before any
+ * component is created.
+ */
+public class KioskApplication extends Application {
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        BootTimings.getInstance(this).mark(BootTimings.EVENT_PROCESS_START);
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        MemoryTrimmer.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        MemoryTrimmer.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+}
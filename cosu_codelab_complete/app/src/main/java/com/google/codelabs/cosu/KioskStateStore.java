@@ -0,0 +1,454 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Small key-value store for the kiosk's own state, such as the photo on the
+ * locked screen and the fingerprint of the applied policy.
+ *
+ * <p>Reads are served from memory. Writes update memory immediately and are
+ * appended to a log file in batches on a background thread, so callers on
+ * the main thread never wait for the disk. Every record carries a CRC; on
+ * load the log is replayed up to the first incomplete or corrupt record,
+ * which is what a crash in the middle of a write leaves behind. The log is
+ * rewritten as a snapshot once it has grown well past the live data.
+ *
+ * <p>Keys and values are limited to {@link #MAX_KEY_BYTES} and
+ * {@link #MAX_VALUE_BYTES} in UTF-8, so that every record fits in the
+ * largest record the log reads back. A larger value is rejected when it is
+ * put, before it reaches the log.
+ */
+public class KioskStateStore {
+    private static final String TAG = "KioskStateStore";
+
+    public static final String KEY_PHOTO_PATH = "Photo Path";
+    public static final String KEY_POLICY_FINGERPRINT = "Policy Fingerprint";
+    public static final String KEY_LOCKED_LAUNCHES = "Locked Launches";
+    public static final String KEY_SLIDE_DWELL_MS = "Slide Dwell Ms";
+    public static final String KEY_CONTENT_SOURCE = "Content Source";
+    public static final String KEY_CONTENT_DIR = "Content Dir";
+    public static final String KEY_CONTENT_TAG = "Content Tag";
+    public static final String KEY_CONTENT_SINCE = "Content Since";
+    public static final String KEY_SCHEDULE = "Schedule";
+    public static final String KEY_BUNDLE = "Bundle";
+
+    public static final int MAX_KEY_BYTES = 1024;
+    public static final int MAX_VALUE_BYTES = 32 * 1024;
+
+    private static final String FILE_NAME = "kiosk_state.log";
+
+    // Preferences this store replaces, imported on first use
+    private static final String LEGACY_PREFS_FILE_NAME = "MyPrefsFile";
+    private static final String LEGACY_PHOTO_PATH = "Photo Path";
+
+    // Strings as length-prefixed UTF-8
+    private static final byte OP_PUT_STRING = 1;
+    private static final byte OP_PUT_LONG = 2;
+    private static final byte OP_REMOVE = 3;
+
+    // Holds the largest key and value with room to spare
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long FLUSH_DELAY_MS = 100;
+    private static final long MIN_COMPACT_BYTES = 16 * 1024;
+
+    // Marks a pending removal in mPending
+    private static final Object REMOVED = new Object();
+
+    private static KioskStateStore sInstance;
+
+    private final File mFile;
+    private final ScheduledExecutorService mWriter =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Object mLock = new Object();
+    // Guarded by mLock
+    private final Map<String, Object> mValues = new HashMap<String, Object>();
+    private final Map<String, Object> mPending =
+            new LinkedHashMap<String, Object>();
+    private boolean mFlushScheduled;
+
+    // Only touched on mWriter
+    private FileOutputStream mOut;
+    private long mLogBytes;
+
+    /**
+     * @return The store, loading it from disk on first use.
+     */
+    public static synchronized KioskStateStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new KioskStateStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private KioskStateStore(Context context) {
+        this(new File(context.getFilesDir(), FILE_NAME));
+        if (!mFile.exists()) {
+            importLegacyPreferences(context);
+        }
+    }
+
+    /**
+     * Creates a store backed by {@code file}, loading it if it exists.
+     */
+    KioskStateStore(File file) {
+        mFile = file;
+        if (mFile.exists()) {
+            load();
+        }
+    }
+
+    /**
+     * @return Whether {@code value} is short enough to be stored.
+     */
+    public static boolean fits(String value) {
+        return value.getBytes(UTF_8).length <= MAX_VALUE_BYTES;
+    }
+
+    public String getString(String key, String defValue) {
+        synchronized (mLock) {
+            Object value = mValues.get(key);
+            return value instanceof String ? (String) value : defValue;
+        }
+    }
+
+    public long getLong(String key, long defValue) {
+        synchronized (mLock) {
+            Object value = mValues.get(key);
+            return value instanceof Long ? (Long) value : defValue;
+        }
+    }
+
+    /**
+     * Sets {@code key} to {@code value}, or removes it if {@code value} is
+     * null.
+     *
+     * @throws IllegalArgumentException If {@code value} is longer than
+     *                                  {@link #MAX_VALUE_BYTES}.
+     */
+    public void putString(String key, String value) {
+        if (value != null && !fits(value)) {
+            throw new IllegalArgumentException("Value of " + key + " is over "
+                    + MAX_VALUE_BYTES + " bytes");
+        }
+        put(key, value);
+    }
+
+    public void putLong(String key, long value) {
+        put(key, value);
+    }
+
+    /**
+     * Adds one to the counter stored under {@code key}.
+     *
+     * @return The new value.
+     */
+    public long increment(String key) {
+        synchronized (mLock) {
+            long value = getLong(key, 0) + 1;
+            put(key, value);
+            return value;
+        }
+    }
+
+    public void remove(String key) {
+        put(key, null);
+    }
+
+    private void put(String key, Object value) {
+        if (key.getBytes(UTF_8).length > MAX_KEY_BYTES) {
+            throw new IllegalArgumentException("Key is over " + MAX_KEY_BYTES
+                    + " bytes: " + key);
+        }
+        synchronized (mLock) {
+            Object old = value != null
+                    ? mValues.put(key, value) : mValues.remove(key);
+            if (value == null ? old == null : value.equals(old)) {
+                return;
+            }
+            mPending.put(key, value != null ? value : REMOVED);
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mWriter.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flushPending();
+                    }
+                }, FLUSH_DELAY_MS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Writes the pending changes and waits until they are on disk. Blocks,
+     * so never call it on the main thread.
+     */
+    void flush() {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                    flushPending();
+                }
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private void flushPending() {
+        Map<String, Object> batch;
+        synchronized (mLock) {
+            batch = new LinkedHashMap<String, Object>(mPending);
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                writeRecord(records, entry.getKey(), entry.getValue());
+            }
+            if (mOut == null) {
+                mOut = new FileOutputStream(mFile, true);
+                mLogBytes = mFile.length();
+            }
+            records.writeTo(mOut);
+            // One sync per batch rather than one per write
+            mOut.getFD().sync();
+            mLogBytes += records.size();
+            maybeCompact();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile, e);
+            closeLog();
+            // Keep the batch for the next flush unless newer writes replaced it
+            synchronized (mLock) {
+                for (Map.Entry<String, Object> entry : batch.entrySet()) {
+                    if (!mPending.containsKey(entry.getKey())) {
+                        mPending.put(entry.getKey(), entry.getValue());
+                    }
+                }
+            }
+        }
+    }
+
+    private void maybeCompact() throws IOException {
+        if (mLogBytes < MIN_COMPACT_BYTES) {
+            return;
+        }
+        Map<String, Object> snapshot;
+        synchronized (mLock) {
+            snapshot = new HashMap<String, Object>(mValues);
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<String, Object> entry : snapshot.entrySet()) {
+            writeRecord(records, entry.getKey(), entry.getValue());
+        }
+        if (mLogBytes < 2 * records.size()) {
+            return;
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            records.writeTo(out);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        closeLog();
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Cannot replace " + mFile);
+        }
+    }
+
+    private void closeLog() {
+        if (mOut != null) {
+            try {
+                mOut.close();
+            } catch (IOException e) {
+                // ignored, the next flush reopens the log
+            }
+            mOut = null;
+        }
+    }
+
+    private static void writeRecord(ByteArrayOutputStream out, String key,
+            Object value) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        if (value instanceof String) {
+            data.writeByte(OP_PUT_STRING);
+            writeString(data, key);
+            writeString(data, (String) value);
+        } else if (value instanceof Long) {
+            data.writeByte(OP_PUT_LONG);
+            writeString(data, key);
+            data.writeLong((Long) value);
+        } else {
+            data.writeByte(OP_REMOVE);
+            writeString(data, key);
+        }
+        data.flush();
+
+        byte[] bytes = payload.toByteArray();
+        DataOutputStream record = new DataOutputStream(out);
+        record.writeInt(bytes.length);
+        record.write(bytes);
+        record.writeInt(crc(bytes));
+        record.flush();
+    }
+
+    private static void writeString(DataOutputStream out, String string)
+            throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > in.available()) {
+            throw new IOException("Bad string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private void load() {
+        long goodBytes = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile)));
+            while (true) {
+                int length = in.readInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES) {
+                    break;
+                }
+                byte[] payload = new byte[length];
+                in.readFully(payload);
+                if (in.readInt() != crc(payload)) {
+                    break;
+                }
+                replay(payload);
+                goodBytes += 8 + length;
+            }
+        } catch (EOFException e) {
+            // End of the log, or a record cut short by a crash
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile, e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+
+        if (goodBytes < mFile.length()) {
+            Log.w(TAG, "Dropping " + (mFile.length() - goodBytes)
+                    + " bytes of incomplete records");
+            truncate(goodBytes);
+        }
+    }
+
+    private void replay(byte[] payload) throws IOException {
+        DataInputStream data = new DataInputStream(
+                new ByteArrayInputStream(payload));
+        byte op = data.readByte();
+        switch (op) {
+            case OP_PUT_STRING:
+                mValues.put(readString(data), readString(data));
+                break;
+            case OP_PUT_LONG:
+                mValues.put(readString(data), data.readLong());
+                break;
+            case OP_REMOVE:
+                mValues.remove(readString(data));
+                break;
+            default:
+                throw new IOException("Unknown record type " + op);
+        }
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to truncate " + mFile, e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // ignored
+                }
+            }
+        }
+    }
+
+    private void importLegacyPreferences(Context context) {
+        SharedPreferences settings = context.getSharedPreferences(
+                LEGACY_PREFS_FILE_NAME, 0);
+        String photoPath = settings.getString(LEGACY_PHOTO_PATH, null);
+        if (photoPath != null) {
+            putString(KEY_PHOTO_PATH, photoPath);
+        }
+    }
+
+    private static int crc(byte[] bytes) {
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        return (int) crc.getValue();
+    }
+}
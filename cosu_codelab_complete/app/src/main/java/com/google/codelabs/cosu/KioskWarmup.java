@@ -0,0 +1,112 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.admin.DevicePolicyManager;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads what {@link LockedActivity} needs while the device is still
+ * finishing its boot, so the HOME screen finds everything in memory.
+ *
+ * <p>Runs on its own thread while the boot broadcast is kept alive with
+ * {@link BroadcastReceiver#goAsync()}, and always finishes well within the
+ * time the system allows a receiver.
+ */
+class KioskWarmup implements Runnable {
+    private static final String TAG = "KioskWarmup";
+
+    // Receivers are given about 10 seconds
+    private static final long POLICY_TIMEOUT_MS = 5000;
+
+    private final Context mContext;
+    private final BroadcastReceiver.PendingResult mPendingResult;
+
+    private KioskWarmup(Context context,
+            BroadcastReceiver.PendingResult pendingResult) {
+        mContext = context.getApplicationContext();
+        mPendingResult = pendingResult;
+    }
+
+    /**
+     * Starts warming up and finishes {@code pendingResult} when done.
+     */
+    static void start(Context context,
+            BroadcastReceiver.PendingResult pendingResult) {
+        new Thread(new KioskWarmup(context, pendingResult), TAG).start();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = SystemClock.elapsedRealtime();
+        try {
+            warmUp();
+        } catch (RuntimeException e) {
+            // Warming up is an optimization; never crash the boot path
+            Log.e(TAG, "Warm-up failed", e);
+        } finally {
+            Log.d(TAG, "Warm-up took "
+                    + (SystemClock.elapsedRealtime() - start) + "ms");
+            mPendingResult.finish();
+        }
+    }
+
+    private void warmUp() {
+        // Loads the state file
+        KioskStateStore store = KioskStateStore.getInstance(mContext);
+
+        DevicePolicyManager dpm = (DevicePolicyManager)
+                mContext.getSystemService(Context.DEVICE_POLICY_SERVICE);
+        CosuPolicy kioskPolicy = CosuPolicy.forKiosk(true);
+        CosuPolicyEngine engine = CosuPolicyEngine.getInstance(mContext);
+        if (!dpm.isDeviceOwnerApp(mContext.getPackageName())
+                || !engine.isLastApplied(kioskPolicy)) {
+            // Not a locked kiosk, nothing will be waiting for us
+            return;
+        }
+
+        // Verifies the fingerprint; the locked screen's own apply is then a
+        // no-op
+        try {
+            engine.apply(kioskPolicy, null).get(POLICY_TIMEOUT_MS,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Policy verification failed", e);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Policy verification timed out");
+        }
+
+        String photoPath = store.getString(KioskStateStore.KEY_PHOTO_PATH,
+                null);
+        if (photoPath != null) {
+            int longEdge = Renditions.getScreenLongEdge(mContext);
+            ImageLoader.preload(mContext,
+                    Renditions.getDisplayPath(mContext, photoPath), longEdge,
+                    longEdge);
+        }
+    }
+}
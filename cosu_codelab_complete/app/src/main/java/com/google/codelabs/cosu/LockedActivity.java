@@ -17,46 +17,128 @@ package com.google.codelabs.cosu;
 import android.app.Activity;
 import android.app.ActivityManager;
 import android.app.admin.DevicePolicyManager;
-import android.app.admin.SystemUpdatePolicy;
-import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.BatteryManager;
 import android.os.Build;
 import android.os.Bundle;
-import android.os.UserManager;
-import android.provider.Settings;
+import android.text.TextUtils;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
+import android.view.ViewTreeObserver;
 import android.widget.Button;
 import android.widget.ImageView;
 import android.widget.Toast;
 
+import org.json.JSONException;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+
 public class LockedActivity extends Activity {
+    private static final String TAG = "LockedActivity";
 
     private ImageView imageView;
     private Button stopLockButton;
     private String mCurrentPhotoPath;
-    private ComponentName mAdminComponentName;
     private DevicePolicyManager mDevicePolicyManager;
     private PackageManager mPackageManager;
+    private ImageLoader mImageLoader;
+    private KioskStateStore mStateStore;
+    private BootTimings mBootTimings;
+    private LockedStateFragment mRetainedState;
+    private boolean mStarted;
+    private SlideshowController mSlideshow;
+    private TiledImageView mTiledView;
+    private ContentDirectoryWatcher mContentWatcher;
+    private ContentIndex mContentIndex;
+    private ScheduleEngine mScheduleEngine;
+    private String mScheduledTag;
+    private AssetBundle mBundle;
 
-    private static final String PREFS_FILE_NAME = "MyPrefsFile";
-    private static final String PHOTO_PATH = "Photo Path";
     public static final String LOCK_ACTIVITY_KEY = "lock_activity";
     public static final int FROM_LOCK_ACTIVITY = 1;
 
+    // The extras below and MainActivity.EXTRA_FILEPATH each name a content
+    // source to show. The source passed is saved for later launches in place
+    // of the one before, whose settings are forgotten.
+
+    /** String array of photo paths to show as a slideshow. */
+    public static final String EXTRA_PLAYLIST =
+            "com.google.codelabs.cosu.EXTRA_PLAYLIST";
+    /** How long each slide is shown, in milliseconds. */
+    public static final String EXTRA_SLIDE_DWELL_MS =
+            "com.google.codelabs.cosu.EXTRA_SLIDE_DWELL_MS";
+    private static final long DEFAULT_SLIDE_DWELL_MS = 10000;
+    /**
+     * Directory whose images are shown as a slideshow that follows the
+     * images added to and removed from it. Takes precedence over every
+     * other source passed with it.
+     */
+    public static final String EXTRA_CONTENT_DIR =
+            "com.google.codelabs.cosu.EXTRA_CONTENT_DIR";
+    /**
+     * {@link ContentIndex} tag of the images to show as a slideshow, such as
+     * {@code campaign:spring}. Takes precedence over a bundle, playlist or
+     * photo passed with it.
+     */
+    public static final String EXTRA_CONTENT_TAG =
+            "com.google.codelabs.cosu.EXTRA_CONTENT_TAG";
+    /**
+     * Only images added to the index at or after this time, in milliseconds
+     * since the epoch, are shown for {@link #EXTRA_CONTENT_TAG}.
+     */
+    public static final String EXTRA_CONTENT_SINCE =
+            "com.google.codelabs.cosu.EXTRA_CONTENT_SINCE";
+    private static final int MAX_TAGGED_SLIDES = 1000;
+    /**
+     * {@link ContentSchedule} rules, as JSON, choosing the
+     * {@link ContentIndex} tag to show by time of day and date, at most
+     * {@link KioskStateStore#MAX_VALUE_BYTES} long. Takes precedence over a
+     * tag, bundle, playlist or photo passed with it.
+     */
+    public static final String EXTRA_SCHEDULE =
+            "com.google.codelabs.cosu.EXTRA_SCHEDULE";
+    /**
+     * Path of an {@link AssetBundle} whose entries are shown as a slideshow,
+     * and indexed under the tags they were bundled with for
+     * {@link #EXTRA_CONTENT_TAG} and {@link #EXTRA_SCHEDULE}, which may be
+     * passed with it. Takes precedence over a playlist or photo passed with
+     * it.
+     */
+    public static final String EXTRA_BUNDLE =
+            "com.google.codelabs.cosu.EXTRA_BUNDLE";
+
+    // Values of KioskStateStore.KEY_CONTENT_SOURCE
+    private static final String SOURCE_PHOTO = "photo";
+    private static final String SOURCE_PLAYLIST = "playlist";
+    private static final String SOURCE_CONTENT_DIR = "content_dir";
+    private static final String SOURCE_CONTENT_TAG = "content_tag";
+    private static final String SOURCE_SCHEDULE = "schedule";
+    private static final String SOURCE_BUNDLE = "bundle";
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        mBootTimings = BootTimings.getInstance(this);
+        mBootTimings.mark(BootTimings.EVENT_LOCKED_CREATE);
         setContentView(R.layout.activity_locked);
 
+        mImageLoader = new ImageLoader();
+        mStateStore = KioskStateStore.getInstance(this);
+        mContentIndex = ContentIndex.getInstance(this);
+        // photo and policy state survive configuration changes in here
+        mRetainedState = LockedStateFragment.get(this);
+        if (savedInstanceState == null) {
+            mStateStore.increment(KioskStateStore.KEY_LOCKED_LAUNCHES);
+        }
+
         mDevicePolicyManager = (DevicePolicyManager)
                 getSystemService(Context.DEVICE_POLICY_SERVICE);
 
@@ -72,6 +154,7 @@ public class LockedActivity extends Activity {
                             ActivityManager.LOCK_TASK_MODE_LOCKED) {
                     stopLockTask();
                 }
+                mRetainedState.setLockTaskStarted(false);
 
                 setDefaultCosuPolicies(false);
 
@@ -87,11 +170,14 @@ public class LockedActivity extends Activity {
         // set image to View
         setImageToView();
 
-        // Set Default COSU policy
-        mAdminComponentName = DeviceAdminReceiver.getComponentName(this);
+        // Set Default COSU policy, unless this is a configuration change
+        // and it is already in effect
         mDevicePolicyManager = (DevicePolicyManager) getSystemService(
                 Context.DEVICE_POLICY_SERVICE);
         mPackageManager = getPackageManager();
+        if (mRetainedState.isPolicyApplied()) {
+            return;
+        }
         if(mDevicePolicyManager.isDeviceOwnerApp(getPackageName())){
             setDefaultCosuPolicies(true);
         }
@@ -105,7 +191,21 @@ public class LockedActivity extends Activity {
     @Override
     protected void onStart() {
         super.onStart();
+        mStarted = true;
+        if (mScheduleEngine != null) {
+            // may replace the slideshow
+            mScheduleEngine.start();
+        }
+        if (mSlideshow != null) {
+            mSlideshow.start();
+        }
+        // a configuration change does not leave lock task mode
+        if (!mRetainedState.isLockTaskStarted()) {
+            startLockTaskIfPermitted();
+        }
+    }
 
+    private void startLockTaskIfPermitted() {
         // start lock task mode if its not already active
         if(mDevicePolicyManager.isLockTaskPermitted(this.getPackageName())){
             ActivityManager am = (ActivityManager) getSystemService(
@@ -114,131 +214,551 @@ public class LockedActivity extends Activity {
                     ActivityManager.LOCK_TASK_MODE_NONE) {
                 startLockTask();
             }
+            mRetainedState.setLockTaskStarted(true);
         }
     }
 
     @Override
     protected void onStop(){
         super.onStop();
+        mStarted = false;
+        if (mScheduleEngine != null) {
+            mScheduleEngine.stop();
+        }
+        if (mSlideshow != null) {
+            mSlideshow.pause();
+        }
 
-        // get editor object and make preference changes to save photo filepath
-        SharedPreferences settings = getSharedPreferences(PREFS_FILE_NAME, 0);
-        SharedPreferences.Editor editor = settings.edit();
-        editor.putString(PHOTO_PATH, mCurrentPhotoPath);
-        editor.commit();
+        // save photo filepath; the store writes it out in the background
+        mStateStore.putString(KioskStateStore.KEY_PHOTO_PATH,
+                mCurrentPhotoPath);
     }
 
-    private void setImageToView(){
-        // Restore preferences
-        SharedPreferences settings = getSharedPreferences(PREFS_FILE_NAME, 0);
-        String savedPhotoPath = settings.getString(PHOTO_PATH, null);
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        // drop any decode still running for this instance
+        mImageLoader.destroy();
+        if (mContentWatcher != null) {
+            mContentWatcher.stop();
+        }
+        if (mSlideshow != null) {
+            mSlideshow.release();
+        }
+    }
 
+    private void setImageToView(){
         //Initialize the image view and display the picture if one exists
         imageView = (ImageView) findViewById(R.id.lock_imageView);
         Intent intent = getIntent();
+        String source = updateContentSource(intent);
+        long dwellMs = getSlideDwellMs(intent);
 
+        // Restore saved state
         String passedPhotoPath = intent.getStringExtra(
                 MainActivity.EXTRA_FILEPATH);
         if (passedPhotoPath != null) {
             mCurrentPhotoPath = passedPhotoPath;
         } else {
-            mCurrentPhotoPath = savedPhotoPath;
+            mCurrentPhotoPath = mStateStore.getString(
+                    KioskStateStore.KEY_PHOTO_PATH, null);
         }
 
-        if (mCurrentPhotoPath != null) {
-            int targetH = imageView.getMaxHeight();
-            int targetW = imageView.getMaxWidth();
-
-            // Get the dimensions of the bitmap
+        if (SOURCE_CONTENT_DIR.equals(source)) {
+            watchContentDir(mStateStore.getString(
+                    KioskStateStore.KEY_CONTENT_DIR, null), dwellMs);
+            return;
+        }
 
-            BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-            bmOptions.inJustDecodeBounds = true;
-            BitmapFactory.decodeFile(mCurrentPhotoPath, bmOptions);
-            int photoH = bmOptions.outHeight;
-            int photoW = bmOptions.outWidth;
+        String bundlePath = getBundlePath(intent, source);
+        if (bundlePath == null) {
+            showContent(source, null, dwellMs);
+            return;
+        }
+        openBundle(bundlePath,
+                intent.getStringExtra(EXTRA_BUNDLE) != null, source, dwellMs);
+    }
 
-            // Determine how much to scale down image
-            int scaleFactor = Math.min(photoW/targetW, photoH/targetH);
+    /**
+     * Shows {@code source}, other than the content directory.
+     *
+     * @param bundle The bundle that is open, or null.
+     */
+    private void showContent(String source, AssetBundle bundle,
+            long dwellMs) {
+        if (SOURCE_SCHEDULE.equals(source)) {
+            List<ContentSchedule.Rule> schedule = parseSchedule(
+                    mStateStore.getString(KioskStateStore.KEY_SCHEDULE, null));
+            if (schedule != null) {
+                followSchedule(schedule, dwellMs);
+            }
+            return;
+        }
+        if (SOURCE_CONTENT_TAG.equals(source)) {
+            showTagged(dwellMs);
+            return;
+        }
+        if (SOURCE_BUNDLE.equals(source)) {
+            if (bundle != null) {
+                // entries only decode through the slideshow, however few
+                replaceSlideshow(getEntryPaths(bundle), dwellMs);
+            }
+            return;
+        }
+        if (SOURCE_PLAYLIST.equals(source)) {
+            List<String> playlist = getPlaylist();
+            if (playlist.size() > 1) {
+                replaceSlideshow(playlist, dwellMs);
+                return;
+            }
+        }
+        showPhoto();
+    }
 
-            // Decode the image file into a Bitmap sized to fill the View
-            bmOptions.inJustDecodeBounds = false;
-            bmOptions.inSampleSize = scaleFactor;
+    private void showPhoto() {
+        if (mCurrentPhotoPath == null) {
+            return;
+        }
 
-            Bitmap imageBitmap = BitmapFactory.decodeFile(mCurrentPhotoPath,
-                    bmOptions);
-            imageView.setImageBitmap(imageBitmap);
+        Bitmap retained = mRetainedState.getBitmap(mCurrentPhotoPath);
+        if (retained != null) {
+            // configuration change; the view scales the bitmap to its new
+            // bounds. Only fitted photos are retained
+            ImageLoader.setImage(imageView, retained,
+                    mRetainedState.getOrientation());
+            return;
         }
+
+        // prefer the display-sized rendition over the camera original
+        final String photoPath = mCurrentPhotoPath;
+        mBootTimings.mark(BootTimings.EVENT_DECODE_START);
+        mImageLoader.load(Renditions.getDisplayPath(this, photoPath),
+                imageView, TiledImageView.getMaxFittedPixels(this),
+                new ImageLoader.SizeLimitCallback() {
+                    @Override
+                    public void onImageLoaded(Bitmap bitmap,
+                            int orientation) {
+                        mBootTimings.mark(BootTimings.EVENT_DECODE_END);
+                        mRetainedState.setBitmap(photoPath, bitmap,
+                                orientation);
+                        markFirstFrame();
+                    }
+
+                    @Override
+                    public void onImageTooLarge() {
+                        // posters and floor plans; only the visible part
+                        // is decoded
+                        showTiled(photoPath);
+                    }
+                });
     }
 
-    private void setDefaultCosuPolicies(boolean active){
-        // set user restrictions
-        setUserRestriction(UserManager.DISALLOW_SAFE_BOOT, active);
-        setUserRestriction(UserManager.DISALLOW_FACTORY_RESET, active);
-        setUserRestriction(UserManager.DISALLOW_ADD_USER, active);
-        setUserRestriction(UserManager.DISALLOW_MOUNT_PHYSICAL_MEDIA, active);
-        setUserRestriction(UserManager.DISALLOW_ADJUST_VOLUME, active);
-
-        // disable keyguard and status bar
-        mDevicePolicyManager.setKeyguardDisabled(mAdminComponentName, active);
-        mDevicePolicyManager.setStatusBarDisabled(mAdminComponentName, active);
-
-        // enable STAY_ON_WHILE_PLUGGED_IN
-        enableStayOnWhilePluggedIn(active);
-
-        // set system update policy
-        if (active){
-            mDevicePolicyManager.setSystemUpdatePolicy(mAdminComponentName,
-                    SystemUpdatePolicy.createWindowedInstallPolicy(60, 120));
+    /**
+     * Saves the content source passed in {@code intent}, if any, in place of
+     * the saved one, and forgets the settings of every other source.
+     *
+     * @return The source to show: the one passed, or else the saved one.
+     */
+    private String updateContentSource(Intent intent) {
+        String source = getPassedContentSource(intent);
+        if (source == null) {
+            return mStateStore.getString(KioskStateStore.KEY_CONTENT_SOURCE,
+                    SOURCE_PHOTO);
+        }
+        mStateStore.putString(KioskStateStore.KEY_CONTENT_SOURCE, source);
+        // each setting is kept only while its source is the one shown
+        mStateStore.putString(KioskStateStore.KEY_CONTENT_DIR,
+                SOURCE_CONTENT_DIR.equals(source)
+                        ? intent.getStringExtra(EXTRA_CONTENT_DIR) : null);
+        mStateStore.putString(KioskStateStore.KEY_SCHEDULE,
+                SOURCE_SCHEDULE.equals(source)
+                        ? intent.getStringExtra(EXTRA_SCHEDULE) : null);
+        if (SOURCE_CONTENT_TAG.equals(source)) {
+            mStateStore.putString(KioskStateStore.KEY_CONTENT_TAG,
+                    intent.getStringExtra(EXTRA_CONTENT_TAG));
+            mStateStore.putLong(KioskStateStore.KEY_CONTENT_SINCE,
+                    intent.getLongExtra(EXTRA_CONTENT_SINCE, 0));
         } else {
-            mDevicePolicyManager.setSystemUpdatePolicy(mAdminComponentName,
-                    null);
+            mStateStore.remove(KioskStateStore.KEY_CONTENT_TAG);
+            mStateStore.remove(KioskStateStore.KEY_CONTENT_SINCE);
         }
+        mStateStore.putString(KioskStateStore.KEY_BUNDLE,
+                SOURCE_BUNDLE.equals(source)
+                        ? intent.getStringExtra(EXTRA_BUNDLE) : null);
+        if (SOURCE_PLAYLIST.equals(source)) {
+            String[] passed = intent.getStringArrayExtra(EXTRA_PLAYLIST);
+            List<String> paths = new ArrayList<String>(passed.length);
+            for (String path : passed) {
+                if (!TextUtils.isEmpty(path)) {
+                    paths.add(path);
+                }
+            }
+            PlaylistStore.getInstance(this).setPaths(paths);
+        } else {
+            PlaylistStore.getInstance(this).clear();
+        }
+        if (intent.hasExtra(EXTRA_SLIDE_DWELL_MS)) {
+            mStateStore.putLong(KioskStateStore.KEY_SLIDE_DWELL_MS,
+                    intent.getLongExtra(EXTRA_SLIDE_DWELL_MS,
+                            DEFAULT_SLIDE_DWELL_MS));
+        }
+        return source;
+    }
 
-        // set this Activity as a lock task package
+    /**
+     * @return The content source passed in {@code intent}, the first of
+     *         those passed in order of precedence; null if there is none. A
+     *         schedule that is too large to save or cannot be parsed does
+     *         not count.
+     */
+    private String getPassedContentSource(Intent intent) {
+        if (intent.getStringExtra(EXTRA_CONTENT_DIR) != null) {
+            return SOURCE_CONTENT_DIR;
+        }
+        String schedule = intent.getStringExtra(EXTRA_SCHEDULE);
+        if (schedule != null) {
+            if (!KioskStateStore.fits(schedule)) {
+                Log.e(TAG, "Ignoring schedule over "
+                        + KioskStateStore.MAX_VALUE_BYTES + " bytes");
+            } else if (parseSchedule(schedule) != null) {
+                return SOURCE_SCHEDULE;
+            }
+        }
+        if (intent.getStringExtra(EXTRA_CONTENT_TAG) != null) {
+            return SOURCE_CONTENT_TAG;
+        }
+        if (intent.getStringExtra(EXTRA_BUNDLE) != null) {
+            return SOURCE_BUNDLE;
+        }
+        if (intent.getStringArrayExtra(EXTRA_PLAYLIST) != null) {
+            return SOURCE_PLAYLIST;
+        }
+        if (intent.getStringExtra(MainActivity.EXTRA_FILEPATH) != null) {
+            return SOURCE_PHOTO;
+        }
+        return null;
+    }
 
-        mDevicePolicyManager.setLockTaskPackages(mAdminComponentName,
-                active ? new String[]{getPackageName()} : new String[]{});
+    /**
+     * @return The saved playlist.
+     */
+    private List<String> getPlaylist() {
+        List<String> paths = PlaylistStore.getInstance(this).getPaths();
+        List<String> playlist = new ArrayList<String>(paths.size());
+        for (String path : paths) {
+            // prefer the display-sized rendition over the camera original
+            playlist.add(Renditions.getDisplayPath(this, path));
+        }
+        return playlist;
+    }
 
-        IntentFilter intentFilter = new IntentFilter(Intent.ACTION_MAIN);
-        intentFilter.addCategory(Intent.CATEGORY_HOME);
-        intentFilter.addCategory(Intent.CATEGORY_DEFAULT);
+    /**
+     * Shows the indexed images with the saved tag, once the index has been
+     * queried.
+     */
+    private void showTagged(final long dwellMs) {
+        String tag = mStateStore.getString(KioskStateStore.KEY_CONTENT_TAG,
+                null);
+        long since = mStateStore.getLong(KioskStateStore.KEY_CONTENT_SINCE, 0);
+        if (tag == null) {
+            return;
+        }
+        queryTagged(tag, since, new ContentIndex.QueryCallback() {
+            @Override
+            public void onQueryResult(List<String> playlist) {
+                replaceSlideshow(playlist, dwellMs);
+            }
+        });
+    }
 
-        if (active) {
-            // set Cosu activity as home intent receiver so that it is started
-            // on reboot
-            mDevicePolicyManager.addPersistentPreferredActivity(
-                    mAdminComponentName, intentFilter, new ComponentName(
-                            getPackageName(), LockedActivity.class.getName()));
-        } else {
-            mDevicePolicyManager.clearPackagePersistentPreferredActivities(
-                    mAdminComponentName, getPackageName());
+    /**
+     * Queries the index off the main thread and reports the display paths
+     * of the images found, unless the activity has been destroyed meanwhile.
+     */
+    private void queryTagged(String tag, long since,
+            final ContentIndex.QueryCallback callback) {
+        // prefer the display-sized renditions over the camera originals;
+        // they are looked up off the main thread with the query
+        mContentIndex.queryDisplayPaths(tag, since, MAX_TAGGED_SLIDES,
+                new ContentIndex.QueryCallback() {
+                    @Override
+                    public void onQueryResult(List<String> playlist) {
+                        if (!isDestroyed()) {
+                            callback.onQueryResult(playlist);
+                        }
+                    }
+                });
+    }
+
+    /**
+     * @return The rules in {@code json}; null if it is null or cannot be
+     *         parsed.
+     */
+    private static List<ContentSchedule.Rule> parseSchedule(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            return ContentSchedule.parse(json);
+        } catch (JSONException e) {
+            Log.e(TAG, "Ignoring invalid schedule", e);
+            return null;
         }
     }
 
-    private void setUserRestriction(String restriction, boolean disallow){
-        if (disallow) {
-            mDevicePolicyManager.addUserRestriction(mAdminComponentName,
-                    restriction);
-        } else {
-            mDevicePolicyManager.clearUserRestriction(mAdminComponentName,
-                    restriction);
+    /**
+     * @return The path of the bundle passed in {@code intent}, or else of
+     *         the saved one if {@code source} is the bundle; null if there
+     *         is none.
+     */
+    private String getBundlePath(Intent intent, String source) {
+        String passed = intent.getStringExtra(EXTRA_BUNDLE);
+        if (passed != null) {
+            return passed;
         }
+        return SOURCE_BUNDLE.equals(source) ? mStateStore.getString(
+                KioskStateStore.KEY_BUNDLE, null) : null;
     }
 
-    private void enableStayOnWhilePluggedIn(boolean enabled){
-        if (enabled) {
-            mDevicePolicyManager.setGlobalSetting(
-                    mAdminComponentName,
-                    Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
-                    Integer.toString(BatteryManager.BATTERY_PLUGGED_AC
-                        | BatteryManager.BATTERY_PLUGGED_USB
-                        | BatteryManager.BATTERY_PLUGGED_WIRELESS));
-        } else {
-            mDevicePolicyManager.setGlobalSetting(
-                    mAdminComponentName,
-                    Settings.Global.STAY_ON_WHILE_PLUGGED_IN,
-                    "0"
-                    );
+    /**
+     * Maps the bundle at {@code path} off the main thread, then shows
+     * {@code source}. A newly passed bundle's entries are indexed first,
+     * replacing those of the bundle before it, whatever the source.
+     */
+    private void openBundle(String path, final boolean passed,
+            final String source, final long dwellMs) {
+        // Only the header and index are read; entries are paged in as they
+        // are decoded
+        AssetBundle.open(new File(path), new AssetBundle.OpenCallback() {
+            @Override
+            public void onBundleOpened(AssetBundle bundle) {
+                if (isDestroyed()) {
+                    return;
+                }
+                // an unreadable bundle has been logged and is skipped
+                if (bundle != null) {
+                    mBundle = bundle;
+                    if (passed) {
+                        // the index runs the queries that showing a tag or
+                        // schedule makes after this write
+                        mContentIndex.putBundle(bundle);
+                    }
+                }
+                showContent(source, bundle, dwellMs);
+            }
+        });
+    }
+
+    private static List<String> getEntryPaths(AssetBundle bundle) {
+        List<String> entries = new ArrayList<String>(bundle.getEntryCount());
+        for (int i = 0; i < bundle.getEntryCount(); i++) {
+            entries.add(bundle.getEntryPath(i));
+        }
+        return entries;
+    }
+
+    private void followSchedule(List<ContentSchedule.Rule> rules,
+            final long dwellMs) {
+        // the engine reports the active rule once started, and arms an alarm
+        // for the next change
+        mScheduleEngine = new ScheduleEngine(this, rules,
+                new ScheduleEngine.Listener() {
+                    @Override
+                    public void onActiveRuleChanged(
+                            ContentSchedule.Rule rule) {
+                        final String tag = rule != null ? rule.getTag()
+                                : null;
+                        if (mSlideshow != null
+                                && TextUtils.equals(tag, mScheduledTag)) {
+                            return;
+                        }
+                        mScheduledTag = tag;
+                        if (tag == null) {
+                            replaceSlideshow(new ArrayList<String>(),
+                                    dwellMs);
+                            return;
+                        }
+                        queryTagged(tag, 0, new ContentIndex.QueryCallback() {
+                            @Override
+                            public void onQueryResult(List<String> playlist) {
+                                // a later change may have overtaken this one
+                                if (TextUtils.equals(tag, mScheduledTag)) {
+                                    replaceSlideshow(playlist, dwellMs);
+                                }
+                            }
+                        });
+                    }
+                });
+        // the bundle may have been opened after onStart()
+        if (mStarted) {
+            mScheduleEngine.start();
+        }
+    }
+
+    private long getSlideDwellMs(Intent intent) {
+        return intent.getLongExtra(EXTRA_SLIDE_DWELL_MS,
+                mStateStore.getLong(KioskStateStore.KEY_SLIDE_DWELL_MS,
+                        DEFAULT_SLIDE_DWELL_MS));
+    }
+
+    private void watchContentDir(String dir, final long dwellMs) {
+        // Only the images that change are touched after the first listing
+        mContentWatcher = new ContentDirectoryWatcher(dir,
+                new ContentDirectoryWatcher.Listener() {
+                    @Override
+                    public void onImageAdded(String path) {
+                        mSlideshow.add(path);
+                        mContentIndex.put(path,
+                                ContentIndex.TAG_CONTENT_DIR);
+                    }
+
+                    @Override
+                    public void onImageReplaced(String path) {
+                        mSlideshow.replace(path);
+                        mContentIndex.put(path,
+                                ContentIndex.TAG_CONTENT_DIR);
+                    }
+
+                    @Override
+                    public void onImageRemoved(String path) {
+                        mSlideshow.remove(path);
+                        mContentIndex.remove(path);
+                    }
+                });
+        // the directory is listed off the main thread; changes are only
+        // reported once the listing is in
+        mContentWatcher.start(new ContentDirectoryWatcher.StartCallback() {
+            @Override
+            public void onStarted(List<String> images) {
+                // Catch up with changes made while nothing was watching
+                mContentIndex.sync(ContentIndex.TAG_CONTENT_DIR, images);
+                replaceSlideshow(images, dwellMs);
+            }
+        });
+    }
+
+    /**
+     * Replaces the slideshow, if there is one, and starts the new one if
+     * the activity is started.
+     */
+    private void replaceSlideshow(List<String> playlist, long dwellMs) {
+        if (mSlideshow != null) {
+            mSlideshow.release();
+        }
+        setUpSlideshow(playlist, dwellMs);
+        if (mStarted) {
+            mSlideshow.start();
+        }
+    }
+
+    private void setUpSlideshow(List<String> playlist, long dwellMs) {
+        mBootTimings.mark(BootTimings.EVENT_DECODE_START);
+        mSlideshow = new SlideshowController(imageView, playlist, dwellMs,
+                new SlideshowController.Listener() {
+                    @Override
+                    public void onSlideShown(int index, String path) {
+                        mBootTimings.mark(BootTimings.EVENT_DECODE_END);
+                        markFirstFrame();
+                    }
+                });
+    }
+
+    private void showTiled(String photoPath) {
+        imageView.setVisibility(View.GONE);
+        mTiledView = (TiledImageView) findViewById(R.id.lock_tiledView);
+        mTiledView.setVisibility(View.VISIBLE);
+        mBootTimings.mark(BootTimings.EVENT_DECODE_START);
+        mTiledView.setImage(photoPath, new TiledImageView.Listener() {
+            @Override
+            public void onImageShown(boolean success) {
+                mBootTimings.mark(BootTimings.EVENT_DECODE_END);
+                markFirstFrame();
+            }
+        });
+    }
+
+    private void markFirstFrame() {
+        // The photo is on screen once the frame it was set in has been drawn
+        imageView.getViewTreeObserver().addOnPreDrawListener(
+                new ViewTreeObserver.OnPreDrawListener() {
+            @Override
+            public boolean onPreDraw() {
+                imageView.getViewTreeObserver().removeOnPreDrawListener(this);
+                imageView.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mBootTimings.mark(BootTimings.EVENT_FIRST_FRAME);
+                    }
+                });
+                return true;
+            }
+        });
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // the shared caches are trimmed by KioskApplication
+        int tier = MemoryTrimmer.tierFor(level);
+        if (mSlideshow != null) {
+            mSlideshow.trimMemory(tier);
+        }
+        if (mTiledView != null) {
+            mTiledView.trimMemory(tier);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mSlideshow != null) {
+            mSlideshow.trimMemory(MemoryTrimmer.TIER_CRITICAL);
+        }
+        if (mTiledView != null) {
+            mTiledView.trimMemory(MemoryTrimmer.TIER_CRITICAL);
+        }
+    }
+
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer,
+            String[] args) {
+        super.dump(prefix, fd, writer, args);
+        mBootTimings.dump(prefix, writer);
+        BitmapPool.getInstance().dump(prefix, writer);
+        writer.print(prefix);
+        writer.println(DecodeProfile.get(this));
+        MemoryTrimmer.dump(prefix, writer);
+        PhotoStore.getInstance(this).dump(prefix, writer);
+        mContentIndex.dump(prefix, writer);
+        if (mBundle != null) {
+            mBundle.dump(prefix, writer);
+        }
+        if (mScheduleEngine != null) {
+            mScheduleEngine.dump(prefix, writer);
+        }
+    }
+
+    private void setDefaultCosuPolicies(boolean active){
+        // only the settings that differ from the device's current state are
+        // applied, off the main thread
+        CosuPolicyEngine.Callback callback = null;
+        if (active) {
+            callback = new CosuPolicyEngine.Callback() {
+                @Override
+                public void onPolicyApplied(CosuPolicy policy, int changes,
+                        long elapsedMicros) {
+                    mBootTimings.mark(BootTimings.EVENT_POLICY_APPLIED);
+                    mRetainedState.setPolicyApplied(true);
+                    // onStart() may have run before this package was
+                    // allowed to lock the task
+                    if (mStarted && !isFinishing()) {
+                        startLockTaskIfPermitted();
+                    }
+                }
+            };
         }
+        CosuPolicyEngine.getInstance(this).apply(
+                CosuPolicy.forKiosk(active), callback);
     }
 }
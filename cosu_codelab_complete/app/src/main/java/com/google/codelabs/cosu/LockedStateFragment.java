@@ -0,0 +1,107 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+
+/**
+ * Headless fragment that keeps {@link LockedActivity}'s decoded photo and
+ * policy state across configuration changes, so that a rotation only has to
+ * lay the screen out again.
+ */
+public class LockedStateFragment extends Fragment {
+    private static final String TAG = "LockedStateFragment";
+
+    private String mPhotoPath;
+    private Bitmap mBitmap;
+    private int mOrientation;
+    private boolean mPolicyApplied;
+    private boolean mLockTaskStarted;
+
+    /**
+     * @return The fragment attached to {@code activity}, added on first use.
+     */
+    public static LockedStateFragment get(Activity activity) {
+        LockedStateFragment fragment = (LockedStateFragment)
+                activity.getFragmentManager().findFragmentByTag(TAG);
+        if (fragment == null) {
+            fragment = new LockedStateFragment();
+            activity.getFragmentManager().beginTransaction()
+                    .add(fragment, TAG)
+                    .commit();
+        }
+        return fragment;
+    }
+
+    @Override
+    public void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setRetainInstance(true);
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        setBitmap(null, null, 0);
+    }
+
+    /**
+     * @return The bitmap shown for {@code photoPath}, or null if a different
+     *         photo or none has been shown.
+     */
+    public Bitmap getBitmap(String photoPath) {
+        return photoPath != null && photoPath.equals(mPhotoPath)
+                ? mBitmap : null;
+    }
+
+    /**
+     * @return The EXIF orientation of the bitmap from {@link #getBitmap}.
+     */
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    public void setBitmap(String photoPath, Bitmap bitmap, int orientation) {
+        // keep the bitmap out of the pool for as long as it is retained
+        if (bitmap != null) {
+            BitmapPool.getInstance().retain(bitmap);
+        }
+        if (mBitmap != null) {
+            BitmapPool.getInstance().release(mBitmap);
+        }
+        mPhotoPath = photoPath;
+        mBitmap = bitmap;
+        mOrientation = orientation;
+    }
+
+    public boolean isPolicyApplied() {
+        return mPolicyApplied;
+    }
+
+    public void setPolicyApplied(boolean applied) {
+        mPolicyApplied = applied;
+    }
+
+    public boolean isLockTaskStarted() {
+        return mLockTaskStarted;
+    }
+
+    public void setLockTaskStarted(boolean started) {
+        mLockTaskStarted = started;
+    }
+}
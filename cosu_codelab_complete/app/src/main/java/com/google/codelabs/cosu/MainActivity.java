@@ -22,7 +22,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
@@ -38,24 +37,35 @@ import android.widget.Toast;
 
 import java.io.File;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
 public class MainActivity extends Activity {
 
     private Button takePicButton;
     private Button lockTaskButton;
     private ImageView imageView;
+    // The last photo processed, which the locked screen shows
     private String mCurrentPhotoPath;
+    // The file the camera is writing the next photo to
+    private String mPendingCapturePath;
     private int permissionCheck;
     private PackageManager mPackageManager;
 
     private DevicePolicyManager mDevicePolicyManager;
     private ComponentName mAdminComponentName;
+    private ImageLoader mImageLoader;
+    private CapturePipeline mCapturePipeline;
+    // Set while the camera is opened again after every photo
+    private boolean mBurstActive;
+    // Set while the camera waits for the pipeline to catch up
+    private boolean mWaitingForPipeline;
 
     private static final int REQUEST_IMAGE_CAPTURE = 1;
     private static final int PERMISSIONS_REQUEST_WRITE_EXTERNAL_STORAGE = 2;
     private static final String FILE_TAG = "File Creation";
+    private static final String STATE_PHOTO_PATH = "photo_path";
+    private static final String STATE_PENDING_CAPTURE_PATH =
+            "pending_capture_path";
+    private static final String STATE_BURST_ACTIVE = "burst_active";
 
     public static final String EXTRA_FILEPATH =
             "com.google.codelabs.cosu.EXTRA_FILEPATH";
@@ -65,30 +75,41 @@ public class MainActivity extends Activity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
 
+        mImageLoader = new ImageLoader();
+        if (savedInstanceState != null) {
+            mCurrentPhotoPath = savedInstanceState.getString(STATE_PHOTO_PATH);
+            mPendingCapturePath = savedInstanceState.getString(
+                    STATE_PENDING_CAPTURE_PATH);
+            mBurstActive = savedInstanceState.getBoolean(STATE_BURST_ACTIVE);
+        }
+
+        // Photos are processed in the background while the camera is open
+        // for the next one
+        mCapturePipeline = CapturePipeline.getInstance(this);
+        mCapturePipeline.setListener(new CapturePipeline.Listener() {
+            @Override
+            public void onPhotoProcessed(String capturePath, String photoPath,
+                    String displayPath) {
+                // Photos are processed in the order they were taken, so
+                // this is the latest; the locked screen shows it as stored
+                mCurrentPhotoPath = photoPath;
+                showPreview(displayPath);
+                if (mWaitingForPipeline) {
+                    mWaitingForPipeline = false;
+                    if (mBurstActive) {
+                        dispatchTakePictureIntent();
+                    }
+                }
+            }
+        });
+
         takePicButton = (Button) findViewById(R.id.pic_button);
         takePicButton.setOnClickListener(new View.OnClickListener() {
             @Override
             public void onClick(View v) {
-                Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
-                if (intent.resolveActivity(getPackageManager()) != null) {
-                    File photoFile=null;
-                    try{
-                        photoFile = createImageFile();
-                    } catch (IOException e) {
-                        Log.e(FILE_TAG,e.getMessage());
-                    }
-                    if (photoFile != null) {
-                        intent.putExtra(MediaStore.EXTRA_OUTPUT,
-                                Uri.fromFile(photoFile));
-                        startActivityForResult(intent, REQUEST_IMAGE_CAPTURE);
-                    }
-                }
-                else{
-                    Toast.makeText(
-                            getApplicationContext(),R.string.no_camera_apps,
-                            Toast.LENGTH_SHORT)
-                            .show();
-                }
+                // Keep taking pictures until the camera is cancelled
+                mBurstActive = true;
+                dispatchTakePictureIntent();
             }
         });
 
@@ -125,6 +146,10 @@ public class MainActivity extends Activity {
         });
 
         imageView = (ImageView) findViewById(R.id.main_imageView);
+        if (mCurrentPhotoPath != null) {
+            // Recreated after a photo was processed
+            showPreview(Renditions.getDisplayPath(this, mCurrentPhotoPath));
+        }
 
         // Check to see if permission to access external storage is granted,
         // and request if not
@@ -153,23 +178,62 @@ public class MainActivity extends Activity {
         }
     }
 
+    @Override
+    protected void onSaveInstanceState(Bundle outState) {
+        super.onSaveInstanceState(outState);
+        // The activity may be destroyed while the camera is in front
+        outState.putString(STATE_PHOTO_PATH, mCurrentPhotoPath);
+        outState.putString(STATE_PENDING_CAPTURE_PATH, mPendingCapturePath);
+        outState.putBoolean(STATE_BURST_ACTIVE, mBurstActive);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        mImageLoader.destroy();
+        mCapturePipeline.setListener(null);
+    }
+
+    private void dispatchTakePictureIntent() {
+        if (mCapturePipeline.isFull()) {
+            // Open the camera again once a photo has been processed
+            mWaitingForPipeline = true;
+            Toast.makeText(getApplicationContext(),
+                    R.string.capture_queue_full, Toast.LENGTH_SHORT).show();
+            return;
+        }
+        Intent intent = new Intent(MediaStore.ACTION_IMAGE_CAPTURE);
+        if (intent.resolveActivity(getPackageManager()) != null) {
+            File photoFile=null;
+            try{
+                photoFile = createImageFile();
+            } catch (IOException e) {
+                Log.e(FILE_TAG,e.getMessage());
+            }
+            if (photoFile != null) {
+                intent.putExtra(MediaStore.EXTRA_OUTPUT,
+                        Uri.fromFile(photoFile));
+                startActivityForResult(intent, REQUEST_IMAGE_CAPTURE);
+                return;
+            }
+        }
+        else{
+            Toast.makeText(
+                    getApplicationContext(),R.string.no_camera_apps,
+                    Toast.LENGTH_SHORT)
+                    .show();
+        }
+        mBurstActive = false;
+    }
+
     private File createImageFile() throws IOException {
 
         //Check for storage permission
         if (permissionCheck == PackageManager.PERMISSION_GRANTED) {
-            // Create an image file name
-            String timeStamp =
-                    new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-            String imageFileName = "JPEG_" + timeStamp + "_";
-            File storageDir = getApplicationContext().getExternalFilesDir(
-                    null);
-            File image = File.createTempFile(
-                    imageFileName,  /* prefix */
-                    ".jpg",         /* suffix */
-                    storageDir      /* directory */
-            );
+            // The store deletes old photos to make room for this one
+            File image = PhotoStore.getInstance(this).createPhotoFile();
             // Save a file: path for use with ACTION_VIEW intents
-            mCurrentPhotoPath = image.getAbsolutePath();
+            mPendingCapturePath = image.getAbsolutePath();
             return image;
         }
         return null;
@@ -178,8 +242,23 @@ public class MainActivity extends Activity {
     @Override
     protected void onActivityResult(int requestCode,
             int resultCode, Intent data) {
-        if (requestCode == REQUEST_IMAGE_CAPTURE && resultCode == RESULT_OK) {
-            setImageToView();
+        if (requestCode != REQUEST_IMAGE_CAPTURE) {
+            return;
+        }
+        String capturePath = mPendingCapturePath;
+        mPendingCapturePath = null;
+        if (capturePath == null) {
+            return;
+        }
+        if (resultCode == RESULT_OK) {
+            setImageToView(capturePath);
+            if (mBurstActive) {
+                dispatchTakePictureIntent();
+            }
+        } else {
+            // Cancelling the camera ends the burst; the photo shown stays
+            mBurstActive = false;
+            PhotoStore.getInstance(this).cancelCapture(capturePath);
         }
     }
 
@@ -200,40 +279,28 @@ public class MainActivity extends Activity {
         }
     }
 
-    private void setImageToView(){
-        //Save the file in gallery
-
-        Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-        File f = new File(mCurrentPhotoPath);
-        Uri contentUri = Uri.fromFile(f);
-        mediaScanIntent.setData(contentUri);
-        this.sendBroadcast(mediaScanIntent);
-
-        // Get the dimensions of the view
-
-        int targetH = imageView.getMaxHeight();
-        int targetW = imageView.getMaxWidth();
-
-        // Get the dimensions of the bitmap
-
-        BitmapFactory.Options bmOptions = new BitmapFactory.Options();
-        bmOptions.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(mCurrentPhotoPath, bmOptions);
-        int photoH = bmOptions.outHeight;
-        int photoW = bmOptions.outWidth;
-
-        // Determine how much to scale down image
-        int scaleFactor = Math.min(photoW/targetW, photoH/targetH);
-
-
-        // Decode the image file into a Bitmap sized to fill the View
-        bmOptions.inJustDecodeBounds = false;
-        bmOptions.inSampleSize = scaleFactor;
-
-        Bitmap imageBitmap = BitmapFactory.decodeFile(mCurrentPhotoPath, bmOptions);
-        imageView.setImageBitmap(imageBitmap);
+    private void setImageToView(String capturePath){
+        // Show the camera's embedded thumbnail right away, scale the photo
+        // down to a display-sized rendition in the background, then preview
+        // the rendition
+        mImageLoader.loadThumbnail(capturePath, imageView);
+        if (!mCapturePipeline.submit(capturePath)) {
+            // The camera is only opened while there is room, so this is
+            // not expected; show the original rather than nothing
+            mCurrentPhotoPath = capturePath;
+            showPreview(capturePath);
+        }
+    }
 
-        // enable lock task button
-        lockTaskButton.setEnabled(true);
+    private void showPreview(String path) {
+        // Decode off the main thread and enable the lock task button once the
+        // preview is showing
+        mImageLoader.load(path, imageView, new ImageLoader.Callback() {
+            @Override
+            public void onImageLoaded(Bitmap bitmap, int orientation) {
+                // enable lock task button
+                lockTaskButton.setEnabled(true);
+            }
+        });
     }
 }
@@ -0,0 +1,108 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.media.MediaScannerConnection;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Tells the media scanner about captured and deleted photos in batches.
+ *
+ * <p>Paths are queued and handed to a single
+ * {@link MediaScannerConnection#scanFile} call once no new path has arrived
+ * for {@link #DEBOUNCE_MS}, or at the latest {@link #MAX_DELAY_MS} after the
+ * first one, so a burst of captures wakes the scanner once. Scanning a path
+ * that no longer exists removes it from the media database. Kiosks that do
+ * not show their photos in a gallery turn scanning off with
+ * {@code R.bool.scan_captured_photos}.
+ */
+public class MediaScanQueue {
+    private static final String TAG = "MediaScanQueue";
+
+    static final long DEBOUNCE_MS = 2000;
+    static final long MAX_DELAY_MS = 10000;
+
+    private static MediaScanQueue sInstance;
+
+    private final Context mContext;
+    private final boolean mEnabled;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // Guarded by this
+    private final Set<String> mPending = new LinkedHashSet<String>();
+    private long mFirstPendingTime;
+
+    /**
+     * @return The queue, created on first use.
+     */
+    public static synchronized MediaScanQueue getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new MediaScanQueue(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private MediaScanQueue(Context context) {
+        mContext = context;
+        mEnabled = context.getResources().getBoolean(
+                R.bool.scan_captured_photos);
+    }
+
+    /**
+     * Queues {@code path} to be scanned. May be called from any thread.
+     */
+    public void enqueue(String path) {
+        if (!mEnabled) {
+            return;
+        }
+        long now = SystemClock.uptimeMillis();
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                mFirstPendingTime = now;
+            }
+            mPending.add(path);
+            // Push the flush back with every path, but not indefinitely
+            mHandler.removeCallbacks(mFlush);
+            mHandler.postAtTime(mFlush, Math.min(now + DEBOUNCE_MS,
+                    mFirstPendingTime + MAX_DELAY_MS));
+        }
+    }
+
+    private void flush() {
+        String[] paths;
+        synchronized (this) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            paths = mPending.toArray(new String[mPending.size()]);
+            mPending.clear();
+        }
+        Log.d(TAG, "Scanning " + paths.length + " files");
+        MediaScannerConnection.scanFile(mContext, paths, null, null);
+    }
+}
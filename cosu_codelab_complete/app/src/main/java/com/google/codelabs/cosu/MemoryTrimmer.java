@@ -0,0 +1,108 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.ComponentCallbacks2;
+import android.util.Log;
+
+import java.io.PrintWriter;
+
+/**
+ * Sheds the kiosk's image memory when the system runs short, so that the
+ * process is less likely to be killed and cold-started again.
+ *
+ * <p>{@link KioskApplication} forwards every {@code onTrimMemory} and
+ * {@code onLowMemory} call here. Trim levels are grouped into three tiers,
+ * each releasing more than the one before:
+ * <ol>
+ * <li>{@link #TIER_MODERATE}: half of the {@link BitmapPool}.</li>
+ * <li>{@link #TIER_LOW}: all of the pool and half of the
+ *     {@link BitmapCache}.</li>
+ * <li>{@link #TIER_CRITICAL}: the pool and the whole cache. The slideshow
+ *     also drops its prefetched slide and spare buffers; see
+ *     {@link SlideshowController#trimMemory}.</li>
+ * </ol>
+ * Nothing is rebuilt eagerly. The cache and pool fill again as images are
+ * decoded, and the slideshow goes back to prefetching at its next slide.
+ */
+public final class MemoryTrimmer {
+    private static final String TAG = "MemoryTrimmer";
+
+    public static final int TIER_NONE = 0;
+    public static final int TIER_MODERATE = 1;
+    public static final int TIER_LOW = 2;
+    public static final int TIER_CRITICAL = 3;
+
+    // Guarded by MemoryTrimmer.class
+    private static int sTrimCount;
+    private static int sLastLevel = -1;
+
+    private MemoryTrimmer() {}
+
+    /**
+     * @return The tier for a {@link ComponentCallbacks2} trim level.
+     */
+    public static int tierFor(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            // Next in line to be killed; keep as little as possible
+            return TIER_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            return TIER_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return TIER_CRITICAL;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return TIER_LOW;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            return TIER_MODERATE;
+        }
+        return TIER_NONE;
+    }
+
+    /**
+     * Releases the process-wide bitmap memory for trim {@code level}.
+     *
+     * @return The tier that was applied.
+     */
+    public static int onTrimMemory(int level) {
+        int tier = tierFor(level);
+        synchronized (MemoryTrimmer.class) {
+            sTrimCount++;
+            sLastLevel = level;
+        }
+        if (tier == TIER_NONE) {
+            return tier;
+        }
+        Log.i(TAG, "Trimming image memory, level " + level + ", tier " + tier);
+
+        // Evicted cache entries fall into the pool, so trim the cache first
+        if (tier >= TIER_CRITICAL) {
+            BitmapCache.getInstance().trimToFraction(0f);
+        } else if (tier >= TIER_LOW) {
+            BitmapCache.getInstance().trimToFraction(0.5f);
+        }
+        BitmapPool pool = BitmapPool.getInstance();
+        pool.trimToSize(tier >= TIER_LOW ? 0 : pool.getSize() / 2);
+        return tier;
+    }
+
+    /**
+     * Prints how often memory has been trimmed.
+     */
+    public static synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Memory trims: " + sTrimCount + ", last level "
+                + sLastLevel);
+    }
+}
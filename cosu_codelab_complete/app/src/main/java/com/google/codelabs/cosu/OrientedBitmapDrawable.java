@@ -0,0 +1,100 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+
+/**
+ * Draws a bitmap stored in any EXIF orientation upright, scaled to the
+ * drawable's bounds. The rotation happens in the draw call, so no rotated
+ * copy of the bitmap is ever made.
+ */
+public class OrientedBitmapDrawable extends Drawable {
+    private final Bitmap mBitmap;
+    private final int mOrientation;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Matrix mMatrix = new Matrix();
+
+    /**
+     * @param orientation An {@link android.media.ExifInterface} orientation.
+     */
+    public OrientedBitmapDrawable(Bitmap bitmap, int orientation) {
+        mBitmap = bitmap;
+        mOrientation = orientation;
+    }
+
+    public Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    public int getOrientation() {
+        return mOrientation;
+    }
+
+    @Override
+    public int getIntrinsicWidth() {
+        return ExifOrientation.isTransposed(mOrientation)
+                ? mBitmap.getHeight() : mBitmap.getWidth();
+    }
+
+    @Override
+    public int getIntrinsicHeight() {
+        return ExifOrientation.isTransposed(mOrientation)
+                ? mBitmap.getWidth() : mBitmap.getHeight();
+    }
+
+    @Override
+    protected void onBoundsChange(Rect bounds) {
+        super.onBoundsChange(bounds);
+        // Center the bitmap on the origin, turn it upright, then stretch it
+        // over the bounds
+        ExifOrientation.setRotation(mMatrix, mOrientation);
+        mMatrix.preTranslate(-mBitmap.getWidth() / 2f,
+                -mBitmap.getHeight() / 2f);
+        mMatrix.postScale((float) bounds.width() / getIntrinsicWidth(),
+                (float) bounds.height() / getIntrinsicHeight());
+        mMatrix.postTranslate(bounds.exactCenterX(), bounds.exactCenterY());
+    }
+
+    @Override
+    public void draw(Canvas canvas) {
+        canvas.drawBitmap(mBitmap, mMatrix, mPaint);
+    }
+
+    @Override
+    public void setAlpha(int alpha) {
+        mPaint.setAlpha(alpha);
+        invalidateSelf();
+    }
+
+    @Override
+    public void setColorFilter(ColorFilter colorFilter) {
+        mPaint.setColorFilter(colorFilter);
+        invalidateSelf();
+    }
+
+    @Override
+    public int getOpacity() {
+        return mBitmap.hasAlpha() || mPaint.getAlpha() < 255
+                ? PixelFormat.TRANSLUCENT : PixelFormat.OPAQUE;
+    }
+}
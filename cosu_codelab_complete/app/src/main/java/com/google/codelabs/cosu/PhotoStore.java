@@ -0,0 +1,400 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Owns the directory that captured photos are written to and keeps it within
+ * a quota.
+ *
+ * <p>Every capture gets a new file from {@link #createPhotoFile}. A photo and
+ * its {@link Renditions rendition} count as one entry against the quota of
+ * {@code R.integer.photo_store_max_megabytes} and
+ * {@code R.integer.photo_store_max_photos}. When a capture starts, and when
+ * {@link #compact} is called after it finishes, a compaction on a background
+ * thread deletes the oldest photos until the store fits again. It never
+ * deletes a pinned photo: the capture in progress, the photo on the locked
+ * screen and the photos in its playlist. It also deletes the empty files of
+ * cancelled captures and renditions whose photo is gone.
+ *
+ * <p>Once the camera has written a photo, {@link #ingest} renames it after
+ * the SHA-256 of its content. A photo identical to one already stored is
+ * dropped in favour of the stored one. Since a stored photo's path names its
+ * content and the file is never modified, the caches, EXIF memo and
+ * renditions keyed by path are effectively keyed by content, and a
+ * re-captured photo finds all of them already filled.
+ */
+public class PhotoStore {
+    private static final String TAG = "PhotoStore";
+
+    // Captures as written by the camera, and photos named by their hash
+    private static final String PREFIX = "JPEG_";
+    private static final String HASH_PREFIX = "IMG_";
+    private static final String SUFFIX = ".jpg";
+    private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static PhotoStore sInstance;
+
+    private final Context mContext;
+    private final long mMaxBytes;
+    private final int mMaxPhotos;
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+
+    // Guarded by this
+    private String mCapturePath;
+    private boolean mCompactionPending;
+    private int mPhotoCount;
+    private long mSize;
+    private int mEvictionCount;
+    private int mDuplicateCount;
+
+    /**
+     * @return The store, created on first use.
+     */
+    public static synchronized PhotoStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PhotoStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PhotoStore(Context context) {
+        mContext = context;
+        Resources res = context.getResources();
+        mMaxBytes = res.getInteger(R.integer.photo_store_max_megabytes)
+                * BYTES_PER_MEGABYTE;
+        mMaxPhotos = res.getInteger(R.integer.photo_store_max_photos);
+    }
+
+    /**
+     * Creates an empty file for the camera to write the next photo to. The
+     * file stays pinned until the next call, whether or not the capture
+     * succeeds.
+     *
+     * @throws IOException If external storage is not available.
+     */
+    public File createPhotoFile() throws IOException {
+        File dir = mContext.getExternalFilesDir(null);
+        if (dir == null) {
+            throw new IOException("External storage is not available");
+        }
+        String timeStamp =
+                new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File photo = File.createTempFile(PREFIX + timeStamp + "_", SUFFIX,
+                dir);
+        synchronized (this) {
+            mCapturePath = photo.getAbsolutePath();
+        }
+        // Make room for the photo before the camera writes it
+        compact();
+        return photo;
+    }
+
+    /**
+     * Unpins the file created for a capture that was cancelled, and deletes
+     * it on a background thread if the camera left it empty.
+     */
+    public void cancelCapture(final String capturePath) {
+        synchronized (this) {
+            if (capturePath.equals(mCapturePath)) {
+                mCapturePath = null;
+            }
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                File capture = new File(capturePath);
+                if (capture.length() == 0 && !capture.delete()) {
+                    Log.w(TAG, "Cannot delete " + capturePath);
+                }
+            }
+        });
+    }
+
+    /**
+     * Renames the photo the camera wrote to {@code capturePath} after its
+     * content, or deletes it if the same content is already stored. Reads
+     * the whole photo, so only call it on a background thread.
+     *
+     * @return The path the photo is stored at, or {@code capturePath} if it
+     *         could not be read.
+     */
+    public String ingest(String capturePath) {
+        File capture = new File(capturePath);
+        String hash;
+        try {
+            hash = sha256(capture);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot hash " + capturePath, e);
+            return capturePath;
+        }
+        File stored = new File(capture.getParentFile(),
+                HASH_PREFIX + hash + SUFFIX);
+        // Only the capture pipeline ingests, one photo at a time
+        if (stored.exists()) {
+            // Keep the existing file, so its rendition and cache entries
+            // stay valid
+            capture.delete();
+            synchronized (this) {
+                mDuplicateCount++;
+            }
+        } else if (!capture.renameTo(stored)) {
+            Log.w(TAG, "Cannot rename " + capturePath);
+            return capturePath;
+        }
+        synchronized (this) {
+            if (capturePath.equals(mCapturePath)) {
+                mCapturePath = stored.getPath();
+            }
+        }
+        return stored.getPath();
+    }
+
+    /**
+     * Brings the store within its quota on a background thread. Calls made
+     * while a compaction is waiting to run are merged into it.
+     */
+    public void compact() {
+        synchronized (this) {
+            if (mCompactionPending) {
+                return;
+            }
+            mCompactionPending = true;
+        }
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PhotoStore.this) {
+                    mCompactionPending = false;
+                }
+                try {
+                    compactBlocking();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Compaction failed", e);
+                }
+            }
+        });
+    }
+
+    private void compactBlocking() {
+        File dir = mContext.getExternalFilesDir(null);
+        File[] files = dir != null ? dir.listFiles() : null;
+        if (files == null) {
+            return;
+        }
+        Set<String> pinned = getPinnedPaths();
+
+        // Pair every photo with its rendition; whatever is left over belongs
+        // to a photo that no longer exists
+        List<Photo> photos = new ArrayList<Photo>();
+        Set<String> renditions = new HashSet<String>();
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(PREFIX) && !name.startsWith(HASH_PREFIX)) {
+                continue;
+            }
+            if (name.endsWith(Renditions.SUFFIX)
+                    || name.endsWith(Renditions.SUFFIX + ".tmp")) {
+                renditions.add(file.getPath());
+            } else if (name.endsWith(SUFFIX)) {
+                photos.add(new Photo(file));
+            }
+        }
+
+        List<Photo> kept = new ArrayList<Photo>(photos.size());
+        for (Photo photo : photos) {
+            renditions.remove(photo.mRendition.getPath());
+            // May still be written by Renditions
+            renditions.remove(photo.mRendition.getPath() + ".tmp");
+            if (photo.mFile.length() == 0
+                    && !pinned.contains(photo.mFile.getPath())) {
+                // A capture that was cancelled or failed
+                delete(photo);
+                continue;
+            }
+            kept.add(photo);
+        }
+        for (String path : renditions) {
+            new File(path).delete();
+        }
+
+        List<Photo> evictions = selectEvictions(kept, pinned, mMaxBytes,
+                mMaxPhotos);
+        long size = 0;
+        for (Photo photo : kept) {
+            size += photo.mSize;
+        }
+        for (Photo photo : evictions) {
+            delete(photo);
+            size -= photo.mSize;
+        }
+        int count = kept.size() - evictions.size();
+        if (!evictions.isEmpty()) {
+            Log.i(TAG, "Evicted " + evictions.size() + " photos, " + count + " left, "
+                    + size + " bytes");
+        }
+        synchronized (this) {
+            mPhotoCount = count;
+            mSize = size;
+            mEvictionCount += evictions.size();
+        }
+    }
+
+    /**
+     * @return The photos to delete, oldest first, to bring {@code photos}
+     *         within {@code maxBytes} and {@code maxPhotos}. Pinned photos
+     *         count against the quota but are never chosen.
+     */
+    static List<Photo> selectEvictions(List<Photo> photos, Set<String> pinned,
+            long maxBytes, int maxPhotos) {
+        long size = 0;
+        int count = photos.size();
+        List<Photo> evictable = new ArrayList<Photo>(photos.size());
+        for (Photo photo : photos) {
+            size += photo.mSize;
+            if (!pinned.contains(photo.mFile.getPath())) {
+                evictable.add(photo);
+            }
+        }
+
+        // Oldest first; photos are never modified after capture
+        Collections.sort(evictable, new Comparator<Photo>() {
+            @Override
+            public int compare(Photo lhs, Photo rhs) {
+                return lhs.mLastModified < rhs.mLastModified ? -1
+                        : (lhs.mLastModified == rhs.mLastModified ? 0 : 1);
+            }
+        });
+        List<Photo> evictions = new ArrayList<Photo>();
+        for (Photo photo : evictable) {
+            if (size <= maxBytes && count <= maxPhotos) {
+                break;
+            }
+            evictions.add(photo);
+            size -= photo.mSize;
+            count--;
+        }
+        return evictions;
+    }
+
+    /**
+     * @return The absolute paths of the photos that must be kept.
+     */
+    private Set<String> getPinnedPaths() {
+        Set<String> pinned = new HashSet<String>();
+        synchronized (this) {
+            if (mCapturePath != null) {
+                pinned.add(mCapturePath);
+            }
+        }
+        KioskStateStore store = KioskStateStore.getInstance(mContext);
+        String photoPath = store.getString(KioskStateStore.KEY_PHOTO_PATH,
+                null);
+        if (photoPath != null) {
+            pinned.add(photoPath);
+        }
+        pinned.addAll(PlaylistStore.getInstance(mContext).getPaths());
+        return pinned;
+    }
+
+    private void delete(Photo photo) {
+        photo.mRendition.delete();
+        if (!photo.mFile.delete()) {
+            Log.w(TAG, "Cannot delete " + photo.mFile);
+        }
+        Renditions.forget(mContext, photo.mFile.getPath());
+        ContentIndex.getInstance(mContext).remove(photo.mFile.getPath());
+        // Drops the photo from the media database
+        MediaScanQueue.getInstance(mContext).enqueue(photo.mFile.getPath());
+    }
+
+    /**
+     * Prints the size of the store.
+     */
+    public synchronized void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Photo store: " + mPhotoCount + "/" + mMaxPhotos
+                + " photos, " + mSize + "/" + mMaxBytes + " bytes, "
+                + mEvictionCount + " evicted, " + mDuplicateCount
+                + " duplicates");
+    }
+
+    /**
+     * @return The SHA-256 of the content of {@code file}, in hex.
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Android release provides SHA-256
+            throw new IllegalStateException(e);
+        }
+        InputStream in = new DigestInputStream(new FileInputStream(file),
+                digest);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                // The digest is updated as the stream is read
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    static class Photo {
+        final File mFile;
+        final File mRendition;
+        final long mLastModified;
+        final long mSize;
+
+        Photo(File file) {
+            mFile = file;
+            mRendition = new File(Renditions.renditionPathFor(file.getPath()));
+            mLastModified = file.lastModified();
+            mSize = file.length() + mRendition.length();
+        }
+    }
+}
@@ -0,0 +1,174 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The locked screen's playlist, saved for later launches.
+ *
+ * <p>A playlist can hold thousands of paths, far more than fits in a
+ * {@link KioskStateStore} value, so it is kept in a file of its own, one
+ * path per line. Reads are served from memory after the first. Writes
+ * update memory immediately and replace the file on a background thread.
+ */
+public class PlaylistStore {
+    private static final String TAG = "PlaylistStore";
+
+    private static final String FILE_NAME = "playlist.txt";
+
+    private static PlaylistStore sInstance;
+
+    private final File mFile;
+    private final ExecutorService mWriter =
+            Executors.newSingleThreadExecutor();
+
+    // Guarded by this; null until loaded
+    private List<String> mPaths;
+
+    /**
+     * @return The store, created on first use. The file is read on the
+     *         first {@link #getPaths}.
+     */
+    public static synchronized PlaylistStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PlaylistStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private PlaylistStore(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * @return The saved playlist, empty if none has been saved.
+     */
+    public synchronized List<String> getPaths() {
+        if (mPaths == null) {
+            mPaths = load();
+        }
+        return mPaths;
+    }
+
+    /**
+     * Saves {@code paths} as the playlist.
+     */
+    public void setPaths(List<String> paths) {
+        final List<String> saved = Collections.unmodifiableList(
+                new ArrayList<String>(paths));
+        synchronized (this) {
+            mPaths = saved;
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                write(saved);
+            }
+        });
+    }
+
+    /**
+     * Forgets the saved playlist.
+     */
+    public void clear() {
+        synchronized (this) {
+            if (mPaths != null && mPaths.isEmpty()) {
+                return;
+            }
+            mPaths = Collections.emptyList();
+        }
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                mFile.delete();
+            }
+        });
+    }
+
+    private List<String> load() {
+        List<String> paths = new ArrayList<String>();
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(mFile), "UTF-8"));
+        } catch (FileNotFoundException e) {
+            return Collections.emptyList();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile, e);
+            return Collections.unmodifiableList(paths);
+        }
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!TextUtils.isEmpty(line)) {
+                    paths.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + mFile, e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // ignored
+            }
+        }
+        return Collections.unmodifiableList(paths);
+    }
+
+    private void write(List<String> paths) {
+        // Written aside and renamed, so a crash leaves the old playlist
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                BufferedWriter writer = new BufferedWriter(
+                        new OutputStreamWriter(out, "UTF-8"));
+                for (String path : paths) {
+                    writer.write(path);
+                    writer.write('\n');
+                }
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("Cannot replace " + mFile);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + mFile, e);
+            tmp.delete();
+        }
+    }
+}
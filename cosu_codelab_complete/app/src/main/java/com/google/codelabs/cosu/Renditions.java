@@ -0,0 +1,203 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.media.ExifInterface;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.WindowManager;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Generates and looks up display-sized copies of captured photos.
+ *
+ * <p>A rendition is the source photo scaled to fit the screen in either
+ * orientation and re-encoded as JPEG next to the original. The locked screen
+ * reads the rendition, which is a few hundred KB, instead of the camera's
+ * multi-megabyte original. The rendition keeps the pixels in the source's
+ * stored orientation and carries over its EXIF orientation tag.
+ */
+public class Renditions {
+    private static final String TAG = "Renditions";
+
+    private static final String PREFS_FILE_NAME = "Renditions";
+    static final String SUFFIX = ".display.jpg";
+    private static final int JPEG_QUALITY = 90;
+
+    private static final ExecutorService sExecutor =
+            Executors.newSingleThreadExecutor();
+
+    /**
+     * Receives the result of {@link #generate} on the main thread.
+     */
+    public interface Callback {
+        /**
+         * @param renditionPath Path of the new rendition, or null if it could
+         *                      not be generated.
+         */
+        void onRenditionReady(String renditionPath);
+    }
+
+    private Renditions() {}
+
+    /**
+     * Generates the rendition for {@code sourcePath} on a background thread.
+     * The decoded bitmap is also added to the {@link BitmapCache}, so showing
+     * the rendition right afterwards does not decode it again.
+     */
+    public static void generate(Context context, final String sourcePath,
+            final Callback callback) {
+        final Context appContext = context.getApplicationContext();
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        sExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final String renditionPath = generateBlocking(appContext,
+                        sourcePath);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onRenditionReady(renditionPath);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @return The rendition to display for {@code sourcePath}, or
+     *         {@code sourcePath} itself if there is no up-to-date rendition.
+     */
+    public static String getDisplayPath(Context context, String sourcePath) {
+        if (sourcePath == null) {
+            return null;
+        }
+        String renditionPath = getPrefs(context).getString(sourcePath, null);
+        if (renditionPath == null) {
+            return sourcePath;
+        }
+        File rendition = new File(renditionPath);
+        if (rendition.lastModified() < new File(sourcePath).lastModified()) {
+            // Missing (lastModified() is 0) or older than the source
+            return sourcePath;
+        }
+        return renditionPath;
+    }
+
+    /**
+     * Drops the record of the rendition for {@code sourcePath}, once the
+     * source has been deleted.
+     */
+    static void forget(Context context, String sourcePath) {
+        getPrefs(context).edit().remove(sourcePath).apply();
+    }
+
+    /**
+     * Generates the rendition for {@code sourcePath} on the calling thread.
+     *
+     * @return The rendition's path, or null on failure.
+     */
+    static String generateBlocking(Context context, String sourcePath) {
+        int longEdge = getScreenLongEdge(context);
+        Bitmap bitmap = BitmapDecoder.decode(sourcePath, longEdge, longEdge,
+                (long) longEdge * longEdge * 4, new BitmapFactory.Options());
+        if (bitmap == null) {
+            Log.w(TAG, "Could not decode " + sourcePath);
+            return null;
+        }
+
+        int orientation = ExifOrientation.get(sourcePath,
+                new File(sourcePath).lastModified());
+        File rendition = new File(renditionPathFor(sourcePath));
+        File tmp = new File(rendition.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(tmp));
+            if (!bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+                    out)) {
+                throw new IOException("Encoding failed");
+            }
+            out.close();
+            out = null;
+            if (orientation != ExifInterface.ORIENTATION_NORMAL) {
+                ExifInterface exif = new ExifInterface(tmp.getPath());
+                exif.setAttribute(ExifInterface.TAG_ORIENTATION,
+                        Integer.toString(orientation));
+                exif.saveAttributes();
+            }
+            // Readers never see a partially written rendition
+            if (!tmp.renameTo(rendition)) {
+                throw new IOException("Cannot rename " + tmp);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write rendition for " + sourcePath, e);
+            tmp.delete();
+            return null;
+        } finally {
+            closeQuietly(out);
+        }
+
+        ExifOrientation.put(rendition.getPath(), rendition.lastModified(),
+                orientation);
+        BitmapCache.getInstance().put(rendition.getPath(),
+                rendition.lastModified(), longEdge, longEdge, bitmap);
+        getPrefs(context).edit()
+                .putString(sourcePath, rendition.getPath())
+                .apply();
+        return rendition.getPath();
+    }
+
+    static String renditionPathFor(String sourcePath) {
+        int dot = sourcePath.lastIndexOf('.');
+        int slash = sourcePath.lastIndexOf(File.separatorChar);
+        String base = dot > slash ? sourcePath.substring(0, dot) : sourcePath;
+        return base + SUFFIX;
+    }
+
+    static int getScreenLongEdge(Context context) {
+        WindowManager wm = (WindowManager) context.getSystemService(
+                Context.WINDOW_SERVICE);
+        DisplayMetrics metrics = new DisplayMetrics();
+        wm.getDefaultDisplay().getRealMetrics(metrics);
+        return Math.max(metrics.widthPixels, metrics.heightPixels);
+    }
+
+    private static SharedPreferences getPrefs(Context context) {
+        return context.getSharedPreferences(PREFS_FILE_NAME, 0);
+    }
+
+    private static void closeQuietly(OutputStream out) {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // ignored, the write has already failed
+            }
+        }
+    }
+}
@@ -0,0 +1,158 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tells the locked screen which {@link ContentSchedule.Rule} is active, and
+ * when that changes.
+ *
+ * <p>While started, exactly one alarm is armed, for the next time the active
+ * rule changes; nothing polls. The rules are compiled for a week at a time,
+ * and compiled again when the week has run out or the clock or time zone is
+ * changed. The alarm does not wake the device: a kiosk whose screen is off
+ * catches up when it wakes.
+ */
+public class ScheduleEngine {
+    private static final String TAG = "ScheduleEngine";
+
+    private static final String ACTION_TRANSITION =
+            "com.google.codelabs.cosu.action.SCHEDULE_TRANSITION";
+    private static final long COMPILE_SPAN_MS = TimeUnit.DAYS.toMillis(7);
+
+    /**
+     * Notified on the main thread when the active rule changes.
+     */
+    public interface Listener {
+        /**
+         * @param rule The rule that is now active, or null if none is.
+         */
+        void onActiveRuleChanged(ContentSchedule.Rule rule);
+    }
+
+    private final Context mContext;
+    private final List<ContentSchedule.Rule> mRules;
+    private final Listener mListener;
+    private final AlarmManager mAlarmManager;
+    private final PendingIntent mAlarmIntent;
+
+    // Only touched on the main thread
+    private ContentSchedule mSchedule;
+    private ContentSchedule.Rule mActiveRule;
+    private boolean mNotified;
+    private boolean mStarted;
+    private long mNextTransition;
+
+    private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (!ACTION_TRANSITION.equals(intent.getAction())) {
+                // Wall-clock times have moved
+                mSchedule = null;
+            }
+            update();
+        }
+    };
+
+    public ScheduleEngine(Context context, List<ContentSchedule.Rule> rules,
+            Listener listener) {
+        mContext = context.getApplicationContext();
+        mRules = rules;
+        mListener = listener;
+        mAlarmManager = (AlarmManager) mContext.getSystemService(
+                Context.ALARM_SERVICE);
+        mAlarmIntent = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(ACTION_TRANSITION).setPackage(
+                        mContext.getPackageName()),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Reports the active rule, then every change until {@link #stop}. Must
+     * be called on the main thread.
+     */
+    public void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        IntentFilter filter = new IntentFilter(ACTION_TRANSITION);
+        filter.addAction(Intent.ACTION_TIME_CHANGED);
+        filter.addAction(Intent.ACTION_TIMEZONE_CHANGED);
+        mContext.registerReceiver(mReceiver, filter);
+        // Only reports a change if one happened while stopped
+        update();
+    }
+
+    /**
+     * Cancels the alarm. The active rule is reported again by the next
+     * {@link #start} only if it has changed.
+     */
+    public void stop() {
+        if (!mStarted) {
+            return;
+        }
+        mStarted = false;
+        mContext.unregisterReceiver(mReceiver);
+        mAlarmManager.cancel(mAlarmIntent);
+    }
+
+    private void update() {
+        if (!mStarted) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (mSchedule == null || !mSchedule.covers(now)) {
+            mSchedule = ContentSchedule.compile(mRules, now,
+                    now + COMPILE_SPAN_MS, TimeZone.getDefault());
+            Log.d(TAG, mRules.size() + " rules compiled into "
+                    + mSchedule.size() + " intervals");
+        }
+
+        ContentSchedule.Rule rule = mSchedule.getActiveRule(now);
+        if (!mNotified || rule != mActiveRule) {
+            mNotified = true;
+            mActiveRule = rule;
+            mListener.onActiveRuleChanged(rule);
+        }
+
+        // Replaces the previous alarm, if it has not gone off yet
+        mNextTransition = mSchedule.getNextTransition(now);
+        mAlarmManager.setExact(AlarmManager.RTC, mNextTransition,
+                mAlarmIntent);
+    }
+
+    /**
+     * Prints the active rule and the next transition.
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        writer.print(prefix);
+        writer.println("Schedule: " + (mActiveRule != null
+                ? mActiveRule : "no active rule") + ", next transition at "
+                + mNextTransition);
+    }
+}
@@ -0,0 +1,491 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+import android.view.View;
+import android.widget.ImageView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cycles an {@link ImageView} through a playlist of images.
+ *
+ * <p>The next slide is decoded on a background thread while the current one
+ * is showing. Slides are decoded into a fixed set of three bitmaps sized for
+ * the view, reused through {@link BitmapFactory.Options#inBitmap}: the one on
+ * screen, the one shown before it, which may still be in a frame being drawn,
+ * and the one being decoded. Once those exist, playback allocates no bitmaps.
+ * Slides use the device's {@link DecodeProfile}.
+ *
+ * <p>The playlist can change while the slideshow runs: {@link #add},
+ * {@link #replace} and {@link #remove} only drop the prefetched or decoding
+ * slide if it is the one that changed.
+ */
+public class SlideshowController implements View.OnLayoutChangeListener {
+    private static final String TAG = "SlideshowController";
+
+    /**
+     * Notified on the main thread whenever a slide is shown.
+     */
+    public interface Listener {
+        void onSlideShown(int index, String path);
+    }
+
+    private final ImageView mImageView;
+    private final List<String> mPlaylist;
+    private final long mDwellMs;
+    private final Listener mListener;
+    private final DecodeProfile mProfile;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private HandlerThread mDecodeThread;
+    private Handler mDecodeHandler;
+
+    // Only touched on the main thread
+    private final ArrayDeque<Bitmap> mFreeBuffers = new ArrayDeque<Bitmap>();
+    private Bitmap mShown;
+    private Bitmap mPrevious;
+    // Non-null exactly while mCursor has a prefetched index
+    private Bitmap mPrefetched;
+    private int mPrefetchedOrientation;
+    private final Cursor mCursor = new Cursor();
+    private int mFailures;
+    private boolean mPrefetchDeferred;
+    private boolean mDwellElapsed;
+    private boolean mRunning;
+    private boolean mStarted;
+    private int mWidth;
+    private int mHeight;
+
+    private final Runnable mDwellRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mDwellElapsed = true;
+            mPrefetchDeferred = false;
+            if (!showPrefetchedIfReady()) {
+                prefetchNext();
+            }
+        }
+    };
+
+    /**
+     * @param playlist Paths of the images to show, in order.
+     * @param dwellMs How long each slide stays on screen.
+     */
+    public SlideshowController(ImageView imageView, List<String> playlist,
+            long dwellMs, Listener listener) {
+        mImageView = imageView;
+        mProfile = DecodeProfile.get(imageView.getContext());
+        mPlaylist = new ArrayList<String>(playlist);
+        mDwellMs = dwellMs;
+        mListener = listener;
+    }
+
+    /**
+     * Starts or resumes playback. Must be called on the main thread.
+     */
+    public void start() {
+        mStarted = true;
+        if (mRunning || mPlaylist.isEmpty()) {
+            return;
+        }
+        mRunning = true;
+        if (mDecodeThread == null) {
+            mDecodeThread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mDecodeThread.start();
+            mDecodeHandler = new Handler(mDecodeThread.getLooper());
+        }
+
+        if (mImageView.isLaidOut()) {
+            onLaidOut();
+        } else {
+            mImageView.addOnLayoutChangeListener(this);
+        }
+    }
+
+    /**
+     * Pauses playback, keeping the current slide and buffers.
+     */
+    public void pause() {
+        mStarted = false;
+        mRunning = false;
+        mImageView.removeOnLayoutChangeListener(this);
+        mMainHandler.removeCallbacks(mDwellRunnable);
+    }
+
+    /**
+     * Stops playback for good and releases the decode thread.
+     */
+    public void release() {
+        pause();
+        if (mDecodeThread != null) {
+            mDecodeThread.quitSafely();
+            mDecodeThread = null;
+            mDecodeHandler = null;
+        }
+        mMainHandler.removeCallbacksAndMessages(null);
+    }
+
+    /**
+     * Appends {@code path} to the playlist.
+     */
+    public void add(String path) {
+        mPlaylist.add(path);
+        // Whatever failed before may decode now
+        mFailures = 0;
+        if (mRunning) {
+            prefetchNext();
+        } else if (mStarted) {
+            // Was waiting for its first slide
+            start();
+        }
+    }
+
+    /**
+     * Shows the new content of {@code path}, which has been rewritten, the
+     * next time its turn comes.
+     */
+    public void replace(String path) {
+        int index = mPlaylist.indexOf(path);
+        if (index < 0) {
+            return;
+        }
+        mFailures = 0;
+        if (mCursor.onReplaced(index)) {
+            mFreeBuffers.push(mPrefetched);
+            mPrefetched = null;
+            prefetchNext();
+        }
+    }
+
+    /**
+     * Removes {@code path} from the playlist. If it was the last slide, the
+     * view is cleared.
+     */
+    public void remove(String path) {
+        int index = mPlaylist.indexOf(path);
+        if (index < 0) {
+            return;
+        }
+        mPlaylist.remove(index);
+        if (mCursor.onRemoved(index, mPlaylist.size())) {
+            mFreeBuffers.push(mPrefetched);
+            mPrefetched = null;
+        }
+
+        if (mPlaylist.isEmpty()) {
+            mMainHandler.removeCallbacks(mDwellRunnable);
+            mImageView.setImageDrawable(null);
+            // The view may still be drawing the last slide
+            if (mPrevious != null) {
+                mFreeBuffers.push(mPrevious);
+            }
+            mPrevious = mShown;
+            mShown = null;
+            // start() again once a slide is added
+            mRunning = false;
+            return;
+        }
+        prefetchNext();
+    }
+
+    /**
+     * Releases memory for a {@link MemoryTrimmer} tier. At
+     * {@link MemoryTrimmer#TIER_CRITICAL} only the slide on screen is kept;
+     * the next slide is decoded again once the current one's time is up.
+     */
+    public void trimMemory(int tier) {
+        if (tier < MemoryTrimmer.TIER_CRITICAL) {
+            return;
+        }
+        mFreeBuffers.clear();
+        mPrevious = null;
+        if (mPrefetched != null) {
+            mCursor.dropPrefetched();
+            mPrefetched = null;
+        }
+        // Before the first slide there is nothing to wait for
+        mPrefetchDeferred = mShown != null;
+    }
+
+    @Override
+    public void onLayoutChange(View v, int left, int top, int right,
+            int bottom, int oldLeft, int oldTop, int oldRight, int oldBottom) {
+        mImageView.removeOnLayoutChangeListener(this);
+        if (mRunning) {
+            onLaidOut();
+        }
+    }
+
+    private void onLaidOut() {
+        int width = Math.max(1, mImageView.getWidth());
+        int height = Math.max(1, mImageView.getHeight());
+        if (width != mWidth || height != mHeight) {
+            // Buffers are sized for the view; drop any from an older size
+            mWidth = width;
+            mHeight = height;
+            mFreeBuffers.clear();
+        }
+
+        if (mShown == null || mDwellElapsed) {
+            // Nothing on screen yet, or the dwell ran out while paused
+            mDwellElapsed = true;
+        } else {
+            mMainHandler.postDelayed(mDwellRunnable, mDwellMs);
+        }
+        if (!showPrefetchedIfReady()) {
+            prefetchNext();
+        }
+    }
+
+    private void prefetchNext() {
+        if (mCursor.mDecoding || mPrefetched != null || mPrefetchDeferred
+                || mDecodeHandler == null || mPlaylist.isEmpty()) {
+            return;
+        }
+        mCursor.mDecoding = true;
+
+        final String path = mPlaylist.get(mCursor.mNext);
+        final Bitmap buffer = takeBuffer();
+        final int width = mWidth;
+        final int height = mHeight;
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Decoded as stored and drawn upright
+                // Bundle entries are neither stat'ed nor parsed here
+                final int orientation = ExifOrientation.get(path,
+                        AssetBundle.lastModified(path));
+                boolean transposed = ExifOrientation.isTransposed(orientation);
+                final Bitmap bitmap = decode(mProfile, path, buffer,
+                        transposed ? height : width,
+                        transposed ? width : height);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onDecoded(buffer, bitmap, orientation);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onDecoded(Bitmap buffer, Bitmap bitmap, int orientation) {
+        if (mCursor.onDecoded(bitmap != null, mPlaylist.size())
+                == Cursor.NONE) {
+            // Decode whatever is at this index now
+            Bitmap unused = bitmap != null ? bitmap : buffer;
+            if (unused != null) {
+                mFreeBuffers.push(unused);
+            }
+            prefetchNext();
+            return;
+        }
+        if (bitmap == null) {
+            if (buffer != null) {
+                mFreeBuffers.push(buffer);
+            }
+            if (++mFailures >= mPlaylist.size()) {
+                Log.e(TAG, "No slide in the playlist could be decoded");
+                return;
+            }
+            prefetchNext();
+            return;
+        }
+        mFailures = 0;
+        mPrefetched = bitmap;
+        mPrefetchedOrientation = orientation;
+        showPrefetchedIfReady();
+    }
+
+    private boolean showPrefetchedIfReady() {
+        if (!mRunning || !mDwellElapsed || mPrefetched == null) {
+            return false;
+        }
+        Bitmap bitmap = mPrefetched;
+        mPrefetched = null;
+        int index = mCursor.takePrefetched();
+        mDwellElapsed = false;
+
+        ImageLoader.setImage(mImageView, bitmap, mPrefetchedOrientation);
+        // The slide before the previous one can no longer be on screen
+        if (mPrevious != null) {
+            mFreeBuffers.push(mPrevious);
+        }
+        mPrevious = mShown;
+        mShown = bitmap;
+
+        if (mListener != null) {
+            mListener.onSlideShown(index, mPlaylist.get(index));
+        }
+        mMainHandler.postDelayed(mDwellRunnable, mDwellMs);
+        prefetchNext();
+        return true;
+    }
+
+    /**
+     * @return A reusable bitmap large enough for any slide, or null while
+     *         the buffers are still being allocated by the decoder.
+     */
+    private Bitmap takeBuffer() {
+        while (!mFreeBuffers.isEmpty()) {
+            Bitmap buffer = mFreeBuffers.pop();
+            if (buffer.getAllocationByteCount()
+                    >= mProfile.maxBytes(mWidth, mHeight)) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    private static Bitmap decode(DecodeProfile profile, String path,
+            Bitmap buffer, int width, int height) {
+        long maxBytes = profile.maxBytes(width, height);
+        if (buffer == null) {
+            // Allocated at the largest size any slide can decode to, so that
+            // it can hold every later slide
+            buffer = Bitmap.createBitmap(width, (int) Math.max(1, maxBytes
+                    / BitmapDecoder.bytesPerPixel(profile.getConfig())
+                    / width), profile.getConfig());
+        }
+        BitmapFactory.Options options = profile.newOptions();
+        options.inMutable = true;
+        options.inBitmap = buffer;
+        try {
+            try {
+                return BitmapDecoder.decode(path, width, height, maxBytes,
+                        options);
+            } catch (IllegalArgumentException e) {
+                // The decoder could not reuse the buffer for this image
+                Log.w(TAG, "Decoding " + path + " into a new bitmap", e);
+                options.inBitmap = null;
+                return BitmapDecoder.decode(path, width, height, maxBytes,
+                        options);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to decode " + path, e);
+            return null;
+        }
+    }
+
+    /**
+     * Keeps the playlist indices of the slide being decoded and of the one
+     * decoded ahead in step with changes to the playlist.
+     */
+    static class Cursor {
+        static final int NONE = -1;
+
+        // The slide to decode next; while a decode runs, the one decoding
+        int mNext;
+        // The decoded slide waiting for its turn, or NONE
+        int mPrefetched = NONE;
+        boolean mDecoding;
+        // Set when the slide being decoded was removed or replaced meanwhile
+        boolean mDecodeStale;
+
+        /**
+         * Moves on from the slide at {@link #mNext}, which has finished
+         * decoding, and keeps it as the prefetched slide if it
+         * {@code decoded}.
+         *
+         * @return Its index, or NONE if the decode is stale and the slide
+         *         now at {@link #mNext} has to be decoded instead.
+         */
+        int onDecoded(boolean decoded, int size) {
+            mDecoding = false;
+            if (mDecodeStale) {
+                mDecodeStale = false;
+                return NONE;
+            }
+            int index = mNext;
+            mNext = (index + 1) % size;
+            if (decoded) {
+                mPrefetched = index;
+            }
+            return index;
+        }
+
+        /**
+         * @return The index of the prefetched slide, which is now shown.
+         */
+        int takePrefetched() {
+            int index = mPrefetched;
+            mPrefetched = NONE;
+            return index;
+        }
+
+        /**
+         * Forgets the prefetched slide, so that it is decoded again next.
+         */
+        void dropPrefetched() {
+            mNext = mPrefetched;
+            mPrefetched = NONE;
+        }
+
+        /**
+         * Notes that the slide at {@code index} has new content.
+         *
+         * @return Whether the prefetched slide was that one and has been
+         *         dropped.
+         */
+        boolean onReplaced(int index) {
+            if (mDecoding && mNext == index) {
+                mDecodeStale = true;
+            } else if (mPrefetched == index) {
+                dropPrefetched();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * Notes that the slide at {@code index} has been removed, leaving
+         * {@code size} slides.
+         *
+         * @return Whether the prefetched slide was that one and has been
+         *         dropped.
+         */
+        boolean onRemoved(int index, int size) {
+            boolean dropped = false;
+            if (mDecoding && mNext == index) {
+                mDecodeStale = true;
+            } else if (mPrefetched == index) {
+                dropPrefetched();
+                dropped = true;
+            } else {
+                if (mPrefetched > index) {
+                    mPrefetched--;
+                }
+                if (mNext > index) {
+                    mNext--;
+                }
+            }
+            if (mNext >= size) {
+                mNext = 0;
+            }
+            return dropped;
+        }
+    }
+}
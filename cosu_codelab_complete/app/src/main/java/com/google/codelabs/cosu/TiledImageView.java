@@ -0,0 +1,487 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.util.LruCache;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Pan and zoom viewer for images far larger than the screen, such as floor
+ * plans and posters.
+ *
+ * <p>The image is never decoded whole. A downsampled copy that fits the
+ * screen is shown first and stays behind everything as a placeholder. On
+ * top of it, {@link BitmapRegionDecoder} decodes square tiles of the visible
+ * area at the power-of-two sample size that matches the current zoom, on a
+ * background thread. Tiles are kept in an LRU bounded by a byte budget that
+ * depends on the screen size only. When the tiles needed to cover the screen
+ * would not fit in the budget, a coarser sample size is used instead, so
+ * memory stays bounded whatever the size of the source.
+ */
+public class TiledImageView extends View {
+    private static final String TAG = "TiledImageView";
+
+    // Tile edge in decoded pixels
+    private static final int TILE_SIZE = 256;
+    // Most screen pixels one source pixel may be zoomed to
+    private static final float MAX_ZOOM = 2f;
+    // Images with this many times the screen's pixels are shown tiled
+    private static final int TILING_THRESHOLD = 16;
+
+    /**
+     * Notified on the main thread once the image can be seen.
+     */
+    public interface Listener {
+        /**
+         * @param success false if the image could not be opened.
+         */
+        void onImageShown(boolean success);
+    }
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF mDst = new RectF();
+    private final DecodeProfile mProfile;
+    private final ScaleGestureDetector mScaleDetector;
+    private final GestureDetector mGestureDetector;
+    private final long mTileBudget;
+
+    private HandlerThread mDecodeThread;
+    private Handler mDecodeHandler;
+    // Only touched on the decode thread
+    private BitmapRegionDecoder mDecoder;
+    // Written on the main thread, read on the decode thread to skip tiles
+    // that are no longer wanted
+    private volatile int mGeneration;
+    private volatile int mWantedSample;
+
+    // Only touched on the main thread
+    private final LruCache<Tile, Bitmap> mTiles;
+    private final Set<Tile> mRequested = new HashSet<Tile>();
+    private int mImageWidth;
+    private int mImageHeight;
+    private Bitmap mBase;
+    private float mScale;
+    private float mMinScale;
+    private float mTransX;
+    private float mTransY;
+
+    public TiledImageView(Context context) {
+        this(context, null);
+    }
+
+    public TiledImageView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        mProfile = DecodeProfile.get(context);
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        // Twice what it takes to cover the screen at the finest sample size
+        mTileBudget = Math.min(Runtime.getRuntime().maxMemory() / 8,
+                2 * mProfile.maxBytes(metrics.widthPixels,
+                        metrics.heightPixels));
+        mTiles = new LruCache<Tile, Bitmap>((int) mTileBudget) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return value.getAllocationByteCount();
+            }
+        };
+        mScaleDetector = new ScaleGestureDetector(context,
+                new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+                    @Override
+                    public boolean onScale(ScaleGestureDetector detector) {
+                        zoomTo(mScale * detector.getScaleFactor(),
+                                detector.getFocusX(), detector.getFocusY());
+                        return true;
+                    }
+                });
+        mGestureDetector = new GestureDetector(context,
+                new GestureDetector.SimpleOnGestureListener() {
+                    @Override
+                    public boolean onDown(MotionEvent e) {
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onScroll(MotionEvent e1, MotionEvent e2,
+                            float distanceX, float distanceY) {
+                        mTransX -= distanceX;
+                        mTransY -= distanceY;
+                        clampTranslation();
+                        invalidate();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean onDoubleTap(MotionEvent e) {
+                        // Toggle between the whole image and full detail
+                        zoomTo(mScale > mMinScale ? mMinScale : 1f,
+                                e.getX(), e.getY());
+                        return true;
+                    }
+                });
+    }
+
+    /**
+     * @return The most pixels an image may have to be shown as one bitmap;
+     *         larger ones are shown in this view.
+     */
+    public static long getMaxFittedPixels(Context context) {
+        DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        return (long) TILING_THRESHOLD * metrics.widthPixels
+                * metrics.heightPixels;
+    }
+
+    /**
+     * Opens {@code path} and shows it fitted to the view.
+     */
+    public void setImage(final String path, final Listener listener) {
+        final int generation = ++mGeneration;
+        mTiles.evictAll();
+        mRequested.clear();
+        mBase = null;
+        mImageWidth = 0;
+        mImageHeight = 0;
+        invalidate();
+
+        if (mDecodeThread == null) {
+            mDecodeThread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            mDecodeThread.start();
+            mDecodeHandler = new Handler(mDecodeThread.getLooper());
+        }
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap base = open(path, metrics.widthPixels,
+                        metrics.heightPixels);
+                final int width = base != null ? mDecoder.getWidth() : 0;
+                final int height = base != null ? mDecoder.getHeight() : 0;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        if (base != null) {
+                            mImageWidth = width;
+                            mImageHeight = height;
+                            mBase = base;
+                            fitToView();
+                        }
+                        if (listener != null) {
+                            listener.onImageShown(base != null);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Releases memory for a {@link MemoryTrimmer} tier. Tiles still on
+     * screen are decoded again on the next frame.
+     */
+    public void trimMemory(int tier) {
+        if (tier >= MemoryTrimmer.TIER_LOW) {
+            mTiles.evictAll();
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        fitToView();
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        mGeneration++;
+        mTiles.evictAll();
+        mRequested.clear();
+        if (mDecodeThread != null) {
+            mDecodeHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    closeDecoder();
+                }
+            });
+            mDecodeThread.quitSafely();
+            mDecodeThread = null;
+            mDecodeHandler = null;
+        }
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        if (mBase == null) {
+            return false;
+        }
+        mScaleDetector.onTouchEvent(event);
+        mGestureDetector.onTouchEvent(event);
+        return true;
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mBase == null) {
+            return;
+        }
+        mDst.set(mTransX, mTransY, mTransX + mImageWidth * mScale,
+                mTransY + mImageHeight * mScale);
+        canvas.drawBitmap(mBase, null, mDst, mPaint);
+
+        int sample = chooseSample();
+        mWantedSample = sample;
+        if ((long) mBase.getWidth() * sample >= mImageWidth) {
+            // The placeholder is already as sharp as these tiles would be
+            return;
+        }
+        int tileSource = TILE_SIZE * sample;
+
+        // Source pixels on screen
+        int left = Math.max(0, (int) (-mTransX / mScale));
+        int top = Math.max(0, (int) (-mTransY / mScale));
+        int right = Math.min(mImageWidth,
+                (int) Math.ceil((getWidth() - mTransX) / mScale));
+        int bottom = Math.min(mImageHeight,
+                (int) Math.ceil((getHeight() - mTransY) / mScale));
+        for (int row = top / tileSource; row * tileSource < bottom; row++) {
+            for (int col = left / tileSource; col * tileSource < right;
+                    col++) {
+                Tile tile = new Tile(sample, col, row);
+                Bitmap bitmap = mTiles.get(tile);
+                if (bitmap == null) {
+                    requestTile(tile);
+                    continue;
+                }
+                Rect source = tile.sourceRect(mImageWidth, mImageHeight);
+                mDst.set(mTransX + source.left * mScale,
+                        mTransY + source.top * mScale,
+                        mTransX + source.right * mScale,
+                        mTransY + source.bottom * mScale);
+                canvas.drawBitmap(bitmap, null, mDst, mPaint);
+            }
+        }
+    }
+
+    /**
+     * @return The sample size for the current zoom, coarsened until the
+     *         tiles covering the view fit in the tile budget.
+     */
+    private int chooseSample() {
+        int sample = BitmapDecoder.calculateInSampleSize(mScale);
+        int bytesPerPixel = BitmapDecoder.bytesPerPixel(mProfile.getConfig());
+        while (true) {
+            float tileOnScreen = TILE_SIZE * sample * mScale;
+            long across = (long) Math.ceil(getWidth() / tileOnScreen) + 1;
+            long down = (long) Math.ceil(getHeight() / tileOnScreen) + 1;
+            if (across * down * TILE_SIZE * TILE_SIZE * bytesPerPixel
+                    <= mTileBudget || tileOnScreen >= getWidth()) {
+                return sample;
+            }
+            sample *= 2;
+        }
+    }
+
+    private void requestTile(final Tile tile) {
+        if (mDecodeHandler == null || !mRequested.add(tile)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final int imageWidth = mImageWidth;
+        final int imageHeight = mImageHeight;
+        mDecodeHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Bitmap bitmap = null;
+                // Skip tiles the user has zoomed away from
+                if (generation == mGeneration
+                        && tile.mSample == mWantedSample) {
+                    bitmap = decodeTile(tile, imageWidth, imageHeight);
+                }
+                final Bitmap result = bitmap;
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mGeneration) {
+                            return;
+                        }
+                        mRequested.remove(tile);
+                        if (result != null) {
+                            mTiles.put(tile, result);
+                            invalidate();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void zoomTo(float scale, float focusX, float focusY) {
+        if (mBase == null) {
+            return;
+        }
+        float maxScale = Math.max(mMinScale, MAX_ZOOM);
+        scale = Math.max(mMinScale, Math.min(maxScale, scale));
+        // Keep the source point under the focus where it is
+        mTransX = focusX - (focusX - mTransX) * scale / mScale;
+        mTransY = focusY - (focusY - mTransY) * scale / mScale;
+        mScale = scale;
+        clampTranslation();
+        invalidate();
+    }
+
+    private void fitToView() {
+        if (mImageWidth == 0 || getWidth() == 0 || getHeight() == 0) {
+            return;
+        }
+        mMinScale = Math.min((float) getWidth() / mImageWidth,
+                (float) getHeight() / mImageHeight);
+        mScale = mMinScale;
+        clampTranslation();
+        invalidate();
+    }
+
+    private void clampTranslation() {
+        mTransX = clamp(mTransX, getWidth(), mImageWidth * mScale);
+        mTransY = clamp(mTransY, getHeight(), mImageHeight * mScale);
+    }
+
+    /**
+     * @return The offset that centers content smaller than the view, or
+     *         keeps larger content covering the view.
+     */
+    private static float clamp(float offset, int viewSize, float size) {
+        if (size <= viewSize) {
+            return (viewSize - size) / 2;
+        }
+        return Math.max(viewSize - size, Math.min(0, offset));
+    }
+
+    /**
+     * Opens the region decoder for {@code path}. Runs on the decode thread.
+     *
+     * @return The placeholder, the whole image fitted to {@code width} x
+     *         {@code height}, or null if the image cannot be opened.
+     */
+    private Bitmap open(String path, int width, int height) {
+        closeDecoder();
+        try {
+            mDecoder = BitmapRegionDecoder.newInstance(path, false);
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot open " + path, e);
+            return null;
+        }
+        int imageWidth = mDecoder.getWidth();
+        int imageHeight = mDecoder.getHeight();
+        BitmapFactory.Options options = mProfile.newOptions();
+        options.inSampleSize = BitmapDecoder.calculateInSampleSize(
+                BitmapDecoder.fitScale(imageWidth, imageHeight, width, height,
+                        mProfile.getMaxPixels()));
+        return mDecoder.decodeRegion(new Rect(0, 0, imageWidth, imageHeight),
+                options);
+    }
+
+    private Bitmap decodeTile(Tile tile, int imageWidth, int imageHeight) {
+        if (mDecoder == null) {
+            return null;
+        }
+        BitmapFactory.Options options = mProfile.newOptions();
+        options.inSampleSize = tile.mSample;
+        try {
+            return mDecoder.decodeRegion(
+                    tile.sourceRect(imageWidth, imageHeight), options);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to decode tile " + tile, e);
+            return null;
+        }
+    }
+
+    private void closeDecoder() {
+        if (mDecoder != null) {
+            mDecoder.recycle();
+            mDecoder = null;
+        }
+    }
+
+    private static final class Tile {
+        final int mSample;
+        final int mCol;
+        final int mRow;
+
+        Tile(int sample, int col, int row) {
+            mSample = sample;
+            mCol = col;
+            mRow = row;
+        }
+
+        /**
+         * @return The part of the source image this tile shows.
+         */
+        Rect sourceRect(int imageWidth, int imageHeight) {
+            int size = TILE_SIZE * mSample;
+            return new Rect(mCol * size, mRow * size,
+                    Math.min(imageWidth, (mCol + 1) * size),
+                    Math.min(imageHeight, (mRow + 1) * size));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Tile)) {
+                return false;
+            }
+            Tile other = (Tile) o;
+            return mSample == other.mSample && mCol == other.mCol
+                    && mRow == other.mRow;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mSample;
+            result = 31 * result + mCol;
+            return 31 * result + mRow;
+        }
+
+        @Override
+        public String toString() {
+            return mSample + "/" + mCol + "/" + mRow;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import org.junit.Test;
+
+public class BitmapDecoderTest {
+    private static final float DELTA = 1e-6f;
+
+    private static BitmapFactory.Options options(Bitmap.Config config) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = config;
+        return options;
+    }
+
+    @Test
+    public void sampleSizeIsTheLargestPowerOfTwoNotBelowTheScale() {
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(1f));
+        assertEquals(1, BitmapDecoder.calculateInSampleSize(0.51f));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(0.5f));
+        assertEquals(2, BitmapDecoder.calculateInSampleSize(0.27f));
+        assertEquals(4, BitmapDecoder.calculateInSampleSize(0.25f));
+        assertEquals(16, BitmapDecoder.calculateInSampleSize(0.05f));
+    }
+
+    @Test
+    public void fitScaleFitsTheLimitingEdge() {
+        // 4000 x 3000 into 1000 x 1000 is limited by the width
+        assertEquals(0.25f,
+                BitmapDecoder.fitScale(4000, 3000, 1000, 1000, 0), DELTA);
+        // and into 2000 x 600 by the height
+        assertEquals(0.2f,
+                BitmapDecoder.fitScale(4000, 3000, 2000, 600, 0), DELTA);
+    }
+
+    @Test
+    public void fitScaleNeverUpscales() {
+        assertEquals(1f, BitmapDecoder.fitScale(200, 100, 1000, 1000, 0),
+                DELTA);
+    }
+
+    @Test
+    public void fitScaleKeepsWithinThePixelBudget() {
+        // The fitted 1000 x 750 is 750000 pixels; a quarter of that halves
+        // each edge
+        float scale = BitmapDecoder.fitScale(4000, 3000, 1000, 1000, 187500);
+        assertEquals(0.125f, scale, DELTA);
+    }
+
+    @Test
+    public void fitScaleWithoutBoundsOnlyAppliesTheBudget() {
+        assertEquals(0.5f, BitmapDecoder.fitScale(2000, 1000, 0, 0, 500000),
+                DELTA);
+    }
+
+    @Test
+    public void exactPowerOfTwoNeedsNoDensityScaling() {
+        BitmapFactory.Options options = options(Bitmap.Config.ARGB_8888);
+        options.inJustDecodeBounds = true;
+        BitmapDecoder.prepareOptions(4000, 3000, 1000, 1000, Long.MAX_VALUE,
+                options);
+
+        assertFalse(options.inJustDecodeBounds);
+        assertEquals(4, options.inSampleSize);
+        assertFalse(options.inScaled);
+        assertEquals(0, options.inDensity);
+        assertEquals(0, options.inTargetDensity);
+    }
+
+    @Test
+    public void densityScalesTheSampledImageToTheFittedWidth() {
+        BitmapFactory.Options options = options(Bitmap.Config.ARGB_8888);
+        BitmapDecoder.prepareOptions(4000, 3000, 1080, 1080, Long.MAX_VALUE,
+                options);
+
+        // Sampled to 2000 wide, then scaled to 1080
+        assertEquals(2, options.inSampleSize);
+        assertTrue(options.inScaled);
+        assertEquals(2000, options.inDensity);
+        assertEquals(1080, options.inTargetDensity);
+        // An upper bound, at most a pixel over on each edge
+        long bytes = BitmapDecoder.outputBytes(4000, 3000, options);
+        assertTrue(bytes >= 1080L * 810 * 4);
+        assertTrue(bytes <= 1081L * 811 * 4);
+    }
+
+    @Test
+    public void budgetIsCountedInBytesOfTheConfig() {
+        BitmapFactory.Options argb = options(Bitmap.Config.ARGB_8888);
+        BitmapFactory.Options rgb = options(Bitmap.Config.RGB_565);
+        long maxBytes = 1000L * 500 * 4;
+        BitmapDecoder.prepareOptions(2000, 1000, 0, 0, maxBytes, argb);
+        BitmapDecoder.prepareOptions(2000, 1000, 0, 0, maxBytes, rgb);
+
+        // Half the bytes a pixel fit twice the pixels
+        assertEquals(2, argb.inSampleSize);
+        assertEquals(1, rgb.inSampleSize);
+        assertTrue(BitmapDecoder.outputBytes(2000, 1000, argb) <= maxBytes);
+        assertTrue(BitmapDecoder.outputBytes(2000, 1000, rgb) <= maxBytes);
+    }
+
+    @Test
+    public void outputBytesRoundsSampledSizesUp() {
+        BitmapFactory.Options options = options(Bitmap.Config.ARGB_8888);
+        options.inSampleSize = 2;
+        options.inScaled = false;
+        assertEquals(501L * 251 * 4,
+                BitmapDecoder.outputBytes(1001, 501, options));
+    }
+
+    @Test
+    public void bytesPerPixelFollowsTheConfig() {
+        assertEquals(4, BitmapDecoder.bytesPerPixel(Bitmap.Config.ARGB_8888));
+        assertEquals(2, BitmapDecoder.bytesPerPixel(Bitmap.Config.RGB_565));
+        assertEquals(1, BitmapDecoder.bytesPerPixel(Bitmap.Config.ALPHA_8));
+        // The decoder's default
+        assertEquals(4, BitmapDecoder.bytesPerPixel(null));
+    }
+}
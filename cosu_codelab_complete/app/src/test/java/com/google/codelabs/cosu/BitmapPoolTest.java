@@ -0,0 +1,85 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class BitmapPoolTest {
+    @Test
+    public void sizeClassesAreAQuarterOctaveApart() {
+        assertEquals(40, BitmapPool.sizeClass(1024));
+        assertEquals(44, BitmapPool.sizeClass(2048));
+        assertEquals(80, BitmapPool.sizeClass(1024 * 1024));
+        // Just past a class boundary goes to the next class
+        assertEquals(41, BitmapPool.sizeClass(1025));
+    }
+
+    @Test
+    public void sizeClassBoundsItsByteCounts() {
+        // A full-screen ARGB_8888 bitmap and its neighbours
+        for (long bytes = 8000000; bytes < 8300000; bytes += 997) {
+            int sizeClass = BitmapPool.sizeClass(bytes);
+            assertTrue(bytes <= Math.pow(2, sizeClass / 4.0));
+            assertTrue(bytes > Math.pow(2, (sizeClass - 1) / 4.0));
+        }
+    }
+
+    @Test
+    public void sizeClassOfNothingIsZero() {
+        assertEquals(0, BitmapPool.sizeClass(0));
+        assertEquals(0, BitmapPool.sizeClass(1));
+    }
+
+    @Test
+    public void lastReleaseFreesTheObject() {
+        BitmapPool.Holds<Object> holds = new BitmapPool.Holds<Object>();
+        Object bitmap = new Object();
+        holds.retain(bitmap);
+        holds.retain(bitmap);
+
+        assertFalse(holds.release(bitmap));
+        assertTrue(holds.isHeld(bitmap));
+        assertTrue(holds.release(bitmap));
+        assertFalse(holds.isHeld(bitmap));
+    }
+
+    @Test
+    public void releaseWithoutRetainIsIgnored() {
+        BitmapPool.Holds<Object> holds = new BitmapPool.Holds<Object>();
+        Object bitmap = new Object();
+
+        assertFalse(holds.release(bitmap));
+        holds.retain(bitmap);
+        assertTrue(holds.release(bitmap));
+        // A second release after the last hold
+        assertFalse(holds.release(bitmap));
+    }
+
+    @Test
+    public void holdsAreCountedByIdentity() {
+        BitmapPool.Holds<String> holds = new BitmapPool.Holds<String>();
+        String first = new String("bitmap");
+        String second = new String("bitmap");
+        holds.retain(first);
+
+        assertFalse(holds.isHeld(second));
+        assertFalse(holds.release(second));
+        assertTrue(holds.release(first));
+    }
+}
@@ -0,0 +1,254 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+public class ContentScheduleTest {
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+    private static final TimeZone BERLIN =
+            TimeZone.getTimeZone("Europe/Berlin");
+    private static final int ALL_DAYS = 0x7f;
+    // Monday to Friday, bit n for Calendar day of week n + 1
+    private static final int WEEKDAYS = 0x3e;
+
+    private static ContentSchedule.Rule rule(String tag, String start,
+            String end, int priority) {
+        return new ContentSchedule.Rule(tag, minute(start), minute(end),
+                ALL_DAYS, 0, 99999999, priority);
+    }
+
+    private static int minute(String time) {
+        String[] parts = time.split(":");
+        return Integer.parseInt(parts[0]) * 60 + Integer.parseInt(parts[1]);
+    }
+
+    private static long at(String time, TimeZone timeZone) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        format.setTimeZone(timeZone);
+        try {
+            return format.parse(time).getTime();
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(time, e);
+        }
+    }
+
+    private static long at(String time) {
+        return at(time, UTC);
+    }
+
+    private static ContentSchedule compile(String from, String until,
+            ContentSchedule.Rule... rules) {
+        return ContentSchedule.compile(Arrays.asList(rules), at(from),
+                at(until), UTC);
+    }
+
+    @Test
+    public void windowCrossingMidnightStartsTheDayBefore() {
+        ContentSchedule.Rule night = rule("night", "20:00", "06:00", 0);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-03 00:00", night);
+
+        // From the window that started on May 31
+        assertSame(night, schedule.getActiveRule(at("2016-06-01 03:00")));
+        assertEquals(at("2016-06-01 06:00"),
+                schedule.getNextTransition(at("2016-06-01 03:00")));
+        assertNull(schedule.getActiveRule(at("2016-06-01 12:00")));
+        assertEquals(at("2016-06-01 20:00"),
+                schedule.getNextTransition(at("2016-06-01 12:00")));
+        assertSame(night, schedule.getActiveRule(at("2016-06-01 23:59")));
+        assertSame(night, schedule.getActiveRule(at("2016-06-02 05:59")));
+    }
+
+    @Test
+    public void windowEndingAt24RunsUntilMidnight() {
+        ContentSchedule.Rule late = rule("late", "22:00", "24:00", 0);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-03 00:00", late);
+
+        assertSame(late, schedule.getActiveRule(at("2016-06-01 23:59")));
+        assertEquals(at("2016-06-02 00:00"),
+                schedule.getNextTransition(at("2016-06-01 22:00")));
+        assertNull(schedule.getActiveRule(at("2016-06-02 00:00")));
+    }
+
+    @Test
+    public void allDayWindowsHaveNoTransitionAtMidnight() {
+        ContentSchedule.Rule always = rule("always", "00:00", "24:00", 0);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-08 00:00", always);
+
+        assertSame(always, schedule.getActiveRule(at("2016-06-04 00:00")));
+        assertEquals(at("2016-06-08 00:00"),
+                schedule.getNextTransition(at("2016-06-01 00:00")));
+    }
+
+    @Test
+    public void higherPriorityWinsOverlap() {
+        ContentSchedule.Rule day = rule("day", "09:00", "17:00", 0);
+        ContentSchedule.Rule lunch = rule("lunch", "12:00", "13:00", 5);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-02 00:00", day, lunch);
+
+        assertSame(day, schedule.getActiveRule(at("2016-06-01 10:00")));
+        assertEquals(at("2016-06-01 12:00"),
+                schedule.getNextTransition(at("2016-06-01 10:00")));
+        assertSame(lunch, schedule.getActiveRule(at("2016-06-01 12:30")));
+        assertEquals(at("2016-06-01 13:00"),
+                schedule.getNextTransition(at("2016-06-01 12:30")));
+        assertSame(day, schedule.getActiveRule(at("2016-06-01 13:00")));
+    }
+
+    @Test
+    public void firstRuleWinsOverlapOfEqualPriority() {
+        ContentSchedule.Rule first = rule("first", "09:00", "17:00", 0);
+        ContentSchedule.Rule second = rule("second", "09:00", "17:00", 0);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-02 00:00", first, second);
+
+        assertSame(first, schedule.getActiveRule(at("2016-06-01 12:00")));
+    }
+
+    @Test
+    public void transitionsAtTheSameInstantLeaveNoEmptyInterval() {
+        ContentSchedule.Rule morning = rule("morning", "09:00", "12:00", 0);
+        ContentSchedule.Rule noon = rule("noon", "12:00", "15:00", 0);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-02 00:00", morning, noon);
+
+        // none, morning, noon, none
+        assertEquals(4, schedule.size());
+        assertEquals(at("2016-06-01 12:00"),
+                schedule.getNextTransition(at("2016-06-01 11:00")));
+        assertSame(noon, schedule.getActiveRule(at("2016-06-01 12:00")));
+    }
+
+    @Test
+    public void lowerPriorityResumesWhenHigherEnds() {
+        ContentSchedule.Rule day = rule("day", "09:00", "17:00", 0);
+        ContentSchedule.Rule promo = rule("promo", "08:00", "10:00", 5);
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-02 00:00", day, promo);
+
+        assertSame(promo, schedule.getActiveRule(at("2016-06-01 09:30")));
+        assertSame(day, schedule.getActiveRule(at("2016-06-01 10:00")));
+        assertEquals(at("2016-06-01 17:00"),
+                schedule.getNextTransition(at("2016-06-01 10:00")));
+    }
+
+    @Test
+    public void weekdayMaskSkipsWeekends() {
+        ContentSchedule.Rule weekdays = new ContentSchedule.Rule("weekdays",
+                minute("09:00"), minute("17:00"), WEEKDAYS, 0, 99999999, 0);
+        // June 4 2016 is a Saturday
+        ContentSchedule schedule = compile("2016-06-03 00:00",
+                "2016-06-07 00:00", weekdays);
+
+        assertSame(weekdays, schedule.getActiveRule(at("2016-06-03 12:00")));
+        assertNull(schedule.getActiveRule(at("2016-06-04 12:00")));
+        assertNull(schedule.getActiveRule(at("2016-06-05 12:00")));
+        assertEquals(at("2016-06-06 09:00"),
+                schedule.getNextTransition(at("2016-06-03 17:00")));
+    }
+
+    @Test
+    public void windowsFollowDaylightSavingTime() {
+        ContentSchedule.Rule early = rule("early", "01:00", "04:00", 0);
+        // Clocks go from 02:00 to 03:00 on March 27 2016 in Berlin
+        ContentSchedule schedule = ContentSchedule.compile(
+                Collections.singletonList(early),
+                at("2016-03-27 00:00", BERLIN),
+                at("2016-03-28 00:00", BERLIN), BERLIN);
+
+        long start = at("2016-03-27 01:00", BERLIN);
+        assertEquals(TimeUnit.HOURS.toMillis(2),
+                schedule.getNextTransition(start) - start);
+    }
+
+    @Test
+    public void coversOnlyTheCompiledSpan() {
+        ContentSchedule schedule = compile("2016-06-01 00:00",
+                "2016-06-02 00:00", rule("day", "09:00", "17:00", 0));
+
+        assertFalse(schedule.covers(at("2016-05-31 23:59")));
+        assertTrue(schedule.covers(at("2016-06-01 00:00")));
+        assertFalse(schedule.covers(at("2016-06-02 00:00")));
+        assertNull(schedule.getActiveRule(at("2016-05-31 12:00")));
+    }
+
+    @Test
+    public void parseReadsWindowsDaysAndDates() throws JSONException {
+        List<ContentSchedule.Rule> rules = ContentSchedule.parse("["
+                + "{\"tag\": \"late\", \"start\": \"22:00\","
+                + " \"end\": \"24:00\", \"days\": [\"sat\", \"sun\"]},"
+                + "{\"tag\": \"xmas\", \"from\": \"2016-12-24\","
+                + " \"until\": \"2016-12-26\", \"priority\": 10}]");
+        assertEquals(2, rules.size());
+        assertEquals("late", rules.get(0).getTag());
+        assertEquals(10, rules.get(1).getPriority());
+
+        // Saturday June 4 2016, then Monday June 6
+        ContentSchedule schedule = ContentSchedule.compile(rules,
+                at("2016-06-04 00:00"), at("2016-06-07 00:00"), UTC);
+        assertSame(rules.get(0),
+                schedule.getActiveRule(at("2016-06-04 23:00")));
+        assertNull(schedule.getActiveRule(at("2016-06-06 23:00")));
+    }
+
+    @Test(expected = JSONException.class)
+    public void parseRejectsTimesPastMidnight() throws JSONException {
+        ContentSchedule.parse("[{\"tag\": \"bad\", \"start\": \"23:00\","
+                + " \"end\": \"24:01\"}]");
+    }
+
+    @Test(expected = JSONException.class)
+    public void parseRejectsMonthsOutOfRange() throws JSONException {
+        ContentSchedule.parse("[{\"tag\": \"bad\","
+                + " \"from\": \"2026-13-01\"}]");
+    }
+
+    @Test(expected = JSONException.class)
+    public void parseRejectsDaysOutOfRange() throws JSONException {
+        // 2026 is not a leap year
+        ContentSchedule.parse("[{\"tag\": \"bad\","
+                + " \"until\": \"2026-02-29\"}]");
+    }
+
+    @Test
+    public void parseAcceptsLeapDays() throws JSONException {
+        assertEquals(1, ContentSchedule.parse("[{\"tag\": \"leap\","
+                + " \"from\": \"2016-02-29\"}]").size());
+    }
+
+    @Test(expected = JSONException.class)
+    public void parseRejectsUnknownDays() throws JSONException {
+        ContentSchedule.parse("[{\"tag\": \"bad\", \"days\": [\"someday\"]}]");
+    }
+}
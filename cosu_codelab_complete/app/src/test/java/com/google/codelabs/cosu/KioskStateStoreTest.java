@@ -0,0 +1,186 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class KioskStateStoreTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File mFile;
+
+    @Before
+    public void setUp() {
+        mFile = new File(mFolder.getRoot(), "kiosk_state.log");
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    @Test
+    public void valuesSurviveReopen() {
+        KioskStateStore store = new KioskStateStore(mFile);
+        store.putString(KioskStateStore.KEY_PHOTO_PATH, "/sdcard/a.jpg");
+        store.putLong(KioskStateStore.KEY_SLIDE_DWELL_MS, 5000);
+        store.increment(KioskStateStore.KEY_LOCKED_LAUNCHES);
+        store.putString(KioskStateStore.KEY_CONTENT_TAG, "lobby");
+        store.remove(KioskStateStore.KEY_CONTENT_TAG);
+        store.flush();
+
+        store = new KioskStateStore(mFile);
+        assertEquals("/sdcard/a.jpg",
+                store.getString(KioskStateStore.KEY_PHOTO_PATH, null));
+        assertEquals(5000,
+                store.getLong(KioskStateStore.KEY_SLIDE_DWELL_MS, 0));
+        assertEquals(1, store.getLong(KioskStateStore.KEY_LOCKED_LAUNCHES, 0));
+        assertNull(store.getString(KioskStateStore.KEY_CONTENT_TAG, null));
+    }
+
+    @Test
+    public void valueOfTheMaximumLengthSurvivesReopen() {
+        // Two bytes a character in UTF-8
+        String value = repeat('\u00e9', KioskStateStore.MAX_VALUE_BYTES / 2);
+        assertTrue(KioskStateStore.fits(value));
+        KioskStateStore store = new KioskStateStore(mFile);
+        store.putString(KioskStateStore.KEY_SCHEDULE, value);
+        store.flush();
+
+        store = new KioskStateStore(mFile);
+        assertEquals(value,
+                store.getString(KioskStateStore.KEY_SCHEDULE, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void putStringRejectsOversizedValue() {
+        new KioskStateStore(mFile).putString(KioskStateStore.KEY_SCHEDULE,
+                repeat('x', KioskStateStore.MAX_VALUE_BYTES + 1));
+    }
+
+    @Test
+    public void oversizedValueDoesNotBlockLaterWrites() {
+        // Past the 65535 bytes DataOutputStream.writeUTF can encode, so a
+        // value like this used to fail every later flush
+        String oversized = repeat('x', 70000);
+        assertFalse(KioskStateStore.fits(oversized));
+        KioskStateStore store = new KioskStateStore(mFile);
+        try {
+            store.putString(KioskStateStore.KEY_SCHEDULE, oversized);
+        } catch (IllegalArgumentException e) {
+            // expected, see putStringRejectsOversizedValue
+        }
+        store.putString(KioskStateStore.KEY_PHOTO_PATH, "/sdcard/a.jpg");
+        store.flush();
+
+        store = new KioskStateStore(mFile);
+        assertEquals("/sdcard/a.jpg",
+                store.getString(KioskStateStore.KEY_PHOTO_PATH, null));
+        assertNull(store.getString(KioskStateStore.KEY_SCHEDULE, null));
+    }
+
+    @Test
+    public void tornLastRecordIsDropped() throws IOException {
+        KioskStateStore store = new KioskStateStore(mFile);
+        store.putString(KioskStateStore.KEY_PHOTO_PATH, "/sdcard/a.jpg");
+        store.flush();
+        long goodLength = mFile.length();
+        store.putString(KioskStateStore.KEY_CONTENT_TAG, "lobby");
+        store.flush();
+
+        setLength(mFile, mFile.length() - 3);
+        store = new KioskStateStore(mFile);
+        assertEquals("/sdcard/a.jpg",
+                store.getString(KioskStateStore.KEY_PHOTO_PATH, null));
+        assertNull(store.getString(KioskStateStore.KEY_CONTENT_TAG, null));
+        assertEquals(goodLength, mFile.length());
+    }
+
+    @Test
+    public void recordWithBadCrcIsDropped() throws IOException {
+        KioskStateStore store = new KioskStateStore(mFile);
+        store.putString(KioskStateStore.KEY_PHOTO_PATH, "/sdcard/a.jpg");
+        store.flush();
+        long goodLength = mFile.length();
+        store.putString(KioskStateStore.KEY_CONTENT_TAG, "lobby");
+        store.flush();
+
+        // The last byte of the value, just before the record's CRC
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.seek(file.length() - 5);
+            file.write('L');
+        } finally {
+            file.close();
+        }
+        store = new KioskStateStore(mFile);
+        assertEquals("/sdcard/a.jpg",
+                store.getString(KioskStateStore.KEY_PHOTO_PATH, null));
+        assertNull(store.getString(KioskStateStore.KEY_CONTENT_TAG, null));
+        assertEquals(goodLength, mFile.length());
+
+        // Appends after the dropped record are read back
+        store.putString(KioskStateStore.KEY_CONTENT_TAG, "lounge");
+        store.flush();
+        store = new KioskStateStore(mFile);
+        assertEquals("lounge",
+                store.getString(KioskStateStore.KEY_CONTENT_TAG, null));
+    }
+
+    @Test
+    public void logIsCompacted() {
+        KioskStateStore store = new KioskStateStore(mFile);
+        String value = null;
+        long written = 0;
+        for (int i = 0; i < 100; i++) {
+            value = i + repeat('x', 1024);
+            store.putString(KioskStateStore.KEY_CONTENT_DIR, value);
+            store.putLong(KioskStateStore.KEY_CONTENT_SINCE, i);
+            store.flush();
+            written += value.length();
+        }
+
+        assertTrue(mFile.length() < written / 2);
+        assertFalse(new File(mFile.getPath() + ".tmp").exists());
+        store = new KioskStateStore(mFile);
+        assertEquals(value,
+                store.getString(KioskStateStore.KEY_CONTENT_DIR, null));
+        assertEquals(99, store.getLong(KioskStateStore.KEY_CONTENT_SINCE, 0));
+    }
+
+    private static void setLength(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class PhotoStoreTest {
+    private static final long MINUTE = 60 * 1000;
+    private static final Set<String> NONE = Collections.emptySet();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private PhotoStore.Photo photo(String name, int bytes, long age)
+            throws IOException {
+        File file = new File(mFolder.getRoot(), name);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        // Whole seconds, for file systems that store no more
+        assertTrue(file.setLastModified(1000000000000L - age));
+        return new PhotoStore.Photo(file);
+    }
+
+    private static List<String> names(List<PhotoStore.Photo> photos) {
+        List<String> names = new ArrayList<String>();
+        for (PhotoStore.Photo photo : photos) {
+            names.add(photo.mFile.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void nothingIsEvictedWithinQuota() throws IOException {
+        List<PhotoStore.Photo> photos = Arrays.asList(
+                photo("IMG_a.jpg", 100, 2 * MINUTE),
+                photo("IMG_b.jpg", 100, MINUTE));
+
+        assertEquals(0, PhotoStore.selectEvictions(photos, NONE, 200, 2)
+                .size());
+    }
+
+    @Test
+    public void oldestAreEvictedFirstToFitTheByteQuota() throws IOException {
+        List<PhotoStore.Photo> photos = Arrays.asList(
+                photo("IMG_new.jpg", 100, MINUTE),
+                photo("IMG_old.jpg", 100, 3 * MINUTE),
+                photo("IMG_mid.jpg", 100, 2 * MINUTE));
+
+        assertEquals(Arrays.asList("IMG_old.jpg", "IMG_mid.jpg"),
+                names(PhotoStore.selectEvictions(photos, NONE, 150, 10)));
+    }
+
+    @Test
+    public void oldestAreEvictedFirstToFitThePhotoQuota() throws IOException {
+        List<PhotoStore.Photo> photos = Arrays.asList(
+                photo("IMG_new.jpg", 100, MINUTE),
+                photo("IMG_old.jpg", 100, 3 * MINUTE),
+                photo("IMG_mid.jpg", 100, 2 * MINUTE));
+
+        assertEquals(Collections.singletonList("IMG_old.jpg"),
+                names(PhotoStore.selectEvictions(photos, NONE, 1000, 2)));
+    }
+
+    @Test
+    public void renditionCountsWithItsPhoto() throws IOException {
+        PhotoStore.Photo withRendition = photo("IMG_a.jpg", 100, 2 * MINUTE);
+        List<PhotoStore.Photo> photos = Arrays.asList(withRendition,
+                photo("IMG_b.jpg", 100, MINUTE));
+        FileOutputStream out = new FileOutputStream(
+                withRendition.mRendition);
+        try {
+            out.write(new byte[50]);
+        } finally {
+            out.close();
+        }
+        // Measured again, as a compaction would
+        photos.set(0, new PhotoStore.Photo(withRendition.mFile));
+
+        assertEquals(250, photos.get(0).mSize + photos.get(1).mSize);
+        assertEquals(Collections.singletonList("IMG_a.jpg"),
+                names(PhotoStore.selectEvictions(photos, NONE, 200, 10)));
+    }
+
+    @Test
+    public void pinnedPhotosAreSkippedButCounted() throws IOException {
+        PhotoStore.Photo shown = photo("IMG_shown.jpg", 100, 4 * MINUTE);
+        PhotoStore.Photo listed = photo("IMG_listed.jpg", 100, 3 * MINUTE);
+        List<PhotoStore.Photo> photos = Arrays.asList(shown, listed,
+                photo("IMG_old.jpg", 100, 2 * MINUTE),
+                photo("IMG_new.jpg", 100, MINUTE));
+        Set<String> pinned = new HashSet<String>(Arrays.asList(
+                shown.mFile.getPath(), listed.mFile.getPath()));
+
+        // The pinned photos alone fill the quota
+        assertEquals(Arrays.asList("IMG_old.jpg", "IMG_new.jpg"),
+                names(PhotoStore.selectEvictions(photos, pinned, 200, 10)));
+    }
+
+    @Test
+    public void pinnedPhotosOverQuotaAreKept() throws IOException {
+        PhotoStore.Photo capture = photo("JPEG_capture.jpg", 500, MINUTE);
+        List<PhotoStore.Photo> photos = Collections.singletonList(capture);
+
+        assertEquals(0, PhotoStore.selectEvictions(photos,
+                Collections.singleton(capture.mFile.getPath()), 100, 0)
+                .size());
+    }
+}
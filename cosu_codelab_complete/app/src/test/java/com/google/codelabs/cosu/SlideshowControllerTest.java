@@ -0,0 +1,156 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Drives {@link SlideshowController.Cursor} the way the controller does as
+ * slides decode and the playlist changes.
+ */
+public class SlideshowControllerTest {
+    private static final int NONE = SlideshowController.Cursor.NONE;
+
+    /**
+     * @return A cursor that has decoded the slide at {@code prefetched} and
+     *         will decode the one after it next.
+     */
+    private static SlideshowController.Cursor prefetched(int prefetched,
+            int size) {
+        SlideshowController.Cursor cursor = new SlideshowController.Cursor();
+        cursor.mNext = prefetched;
+        cursor.mDecoding = true;
+        assertEquals(prefetched, cursor.onDecoded(true, size));
+        return cursor;
+    }
+
+    private static SlideshowController.Cursor decoding(int next) {
+        SlideshowController.Cursor cursor = new SlideshowController.Cursor();
+        cursor.mNext = next;
+        cursor.mDecoding = true;
+        return cursor;
+    }
+
+    @Test
+    public void decodesInOrderAndWraps() {
+        SlideshowController.Cursor cursor = prefetched(2, 3);
+        assertEquals(0, cursor.mNext);
+        assertEquals(2, cursor.takePrefetched());
+        assertEquals(NONE, cursor.mPrefetched);
+    }
+
+    @Test
+    public void failedSlideIsSkipped() {
+        SlideshowController.Cursor cursor = decoding(1);
+        assertEquals(1, cursor.onDecoded(false, 3));
+        assertEquals(NONE, cursor.mPrefetched);
+        assertEquals(2, cursor.mNext);
+    }
+
+    @Test
+    public void slideAddedDuringTheLastDecodeIsNext() {
+        SlideshowController.Cursor cursor = decoding(1);
+        // The playlist grew from 2 to 3 while slide 1 decoded
+        assertEquals(1, cursor.onDecoded(true, 3));
+        assertEquals(2, cursor.mNext);
+    }
+
+    @Test
+    public void removingAnEarlierSlideShiftsBothIndices() {
+        SlideshowController.Cursor cursor = prefetched(2, 5);
+        assertFalse(cursor.onRemoved(0, 4));
+        assertEquals(1, cursor.mPrefetched);
+        assertEquals(2, cursor.mNext);
+    }
+
+    @Test
+    public void removingALaterSlideLeavesTheIndices() {
+        SlideshowController.Cursor cursor = prefetched(1, 5);
+        assertFalse(cursor.onRemoved(4, 4));
+        assertEquals(1, cursor.mPrefetched);
+        assertEquals(2, cursor.mNext);
+    }
+
+    @Test
+    public void removingThePrefetchedSlideDecodesItsSuccessor() {
+        SlideshowController.Cursor cursor = prefetched(1, 3);
+        assertTrue(cursor.onRemoved(1, 2));
+        assertEquals(NONE, cursor.mPrefetched);
+        // The slide that was at 2
+        assertEquals(1, cursor.mNext);
+    }
+
+    @Test
+    public void removingTheLastPrefetchedSlideWraps() {
+        SlideshowController.Cursor cursor = prefetched(2, 3);
+        assertTrue(cursor.onRemoved(2, 2));
+        assertEquals(0, cursor.mNext);
+    }
+
+    @Test
+    public void removingTheDecodingSlideMakesTheDecodeStale() {
+        SlideshowController.Cursor cursor = decoding(1);
+        assertFalse(cursor.onRemoved(1, 2));
+        assertEquals(NONE, cursor.onDecoded(true, 2));
+        assertEquals(NONE, cursor.mPrefetched);
+        // The slide that was at 2 is decoded in its place
+        assertEquals(1, cursor.mNext);
+        assertFalse(cursor.mDecoding);
+    }
+
+    @Test
+    public void removingTheOnlySlideRestartsAtTheBeginning() {
+        SlideshowController.Cursor cursor = decoding(0);
+        cursor.onRemoved(0, 0);
+        assertEquals(0, cursor.mNext);
+        assertEquals(NONE, cursor.onDecoded(false, 0));
+    }
+
+    @Test
+    public void replacingThePrefetchedSlideDecodesItAgain() {
+        SlideshowController.Cursor cursor = prefetched(1, 3);
+        assertTrue(cursor.onReplaced(1));
+        assertEquals(NONE, cursor.mPrefetched);
+        assertEquals(1, cursor.mNext);
+    }
+
+    @Test
+    public void replacingTheDecodingSlideMakesTheDecodeStale() {
+        SlideshowController.Cursor cursor = decoding(1);
+        assertFalse(cursor.onReplaced(1));
+        assertEquals(NONE, cursor.onDecoded(true, 3));
+        assertEquals(1, cursor.mNext);
+    }
+
+    @Test
+    public void replacingAnotherSlideChangesNothing() {
+        SlideshowController.Cursor cursor = prefetched(1, 3);
+        assertFalse(cursor.onReplaced(0));
+        assertEquals(1, cursor.mPrefetched);
+        assertEquals(2, cursor.mNext);
+    }
+
+    @Test
+    public void droppedPrefetchIsDecodedAgain() {
+        SlideshowController.Cursor cursor = prefetched(1, 3);
+        cursor.dropPrefetched();
+        assertEquals(NONE, cursor.mPrefetched);
+        assertEquals(1, cursor.mNext);
+    }
+}
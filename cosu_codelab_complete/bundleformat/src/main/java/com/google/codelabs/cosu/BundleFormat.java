@@ -0,0 +1,61 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+/**
+ * Layout of an asset bundle, a single file of pre-scaled images written by
+ * the desktop bundle tool and read by the app through {@link BundleIndex}:
+ * <pre>
+ * header    8 bytes  magic, "COSUBNDL"
+ *           int      format version
+ *           int      number of entries
+ *           long     offset of the index
+ *           int      length of the index
+ *           int      CRC-32 of the index
+ * payloads           each entry's encoded image, starting on a
+ *                    {@link #PAYLOAD_ALIGNMENT} boundary
+ * index              for each entry: UTF name, long offset, int length,
+ *                    int width, int height, short number of tags, UTF tags
+ * </pre>
+ * Numbers are big-endian and strings are in {@link java.io.DataOutput}'s
+ * modified UTF-8. The index comes last so that the writer can stream the
+ * payloads without knowing their sizes in advance.
+ *
+ * <p>Kept in a plain Java module of its own, so that the app and the bundle
+ * tool share one definition.
+ */
+public final class BundleFormat {
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+
+    // Each payload starts on its own page, so decoding one entry faults in
+    // no pages of its neighbours
+    public static final int PAYLOAD_ALIGNMENT = 4096;
+
+    public static final String EXTENSION = ".bundle";
+
+    private static final byte[] MAGIC = {
+            'C', 'O', 'S', 'U', 'B', 'N', 'D', 'L',
+    };
+
+    private BundleFormat() {}
+
+    /**
+     * @return The magic bytes a bundle starts with.
+     */
+    public static byte[] getMagic() {
+        return MAGIC.clone();
+    }
+}
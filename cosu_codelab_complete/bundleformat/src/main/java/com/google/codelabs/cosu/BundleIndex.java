@@ -0,0 +1,173 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * The header and index of an asset bundle in the {@link BundleFormat}
+ * layout, read into memory and checked: the index's CRC must match, and
+ * every entry must lie between the header and the index.
+ */
+public final class BundleIndex {
+    private final String[] mNames;
+    private final String[][] mTags;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+    private final int[] mWidths;
+    private final int[] mHeights;
+    private final Map<String, Integer> mIndexByName;
+
+    private BundleIndex(int count) {
+        mNames = new String[count];
+        mTags = new String[count][];
+        mOffsets = new long[count];
+        mLengths = new int[count];
+        mWidths = new int[count];
+        mHeights = new int[count];
+        mIndexByName = new HashMap<String, Integer>(count * 2);
+    }
+
+    /**
+     * Reads the index of the bundle held in {@code bundle}, from its start
+     * to its limit. The buffer's position is left unchanged.
+     *
+     * @throws IOException If {@code bundle} is not a bundle, is of another
+     *                     version, or is corrupt.
+     */
+    public static BundleIndex read(ByteBuffer bundle) throws IOException {
+        ByteBuffer buffer = bundle.duplicate();
+        buffer.clear();
+        if (buffer.capacity() < BundleFormat.HEADER_SIZE) {
+            throw new IOException("Not a bundle");
+        }
+        byte[] magic = new byte[BundleFormat.getMagic().length];
+        buffer.get(magic);
+        if (!Arrays.equals(magic, BundleFormat.getMagic())) {
+            throw new IOException("Not a bundle");
+        }
+        int version = buffer.getInt();
+        if (version != BundleFormat.VERSION) {
+            throw new IOException("Unsupported bundle version " + version);
+        }
+        int count = buffer.getInt();
+        long indexOffset = buffer.getLong();
+        int indexLength = buffer.getInt();
+        int indexCrc = buffer.getInt();
+        if (count < 0 || indexOffset < BundleFormat.HEADER_SIZE
+                || indexLength < 0
+                || indexOffset + indexLength > buffer.capacity()) {
+            throw new IOException("Corrupt bundle header");
+        }
+
+        byte[] index = new byte[indexLength];
+        buffer.position((int) indexOffset);
+        buffer.get(index);
+        CRC32 crc = new CRC32();
+        crc.update(index);
+        if ((int) crc.getValue() != indexCrc) {
+            throw new IOException("Corrupt bundle index");
+        }
+
+        // Each entry takes at least 24 bytes, so a bad count fails here
+        // rather than allocating for it
+        if (count > indexLength / 24) {
+            throw new IOException("Corrupt bundle header");
+        }
+        BundleIndex result = new BundleIndex(count);
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(index));
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            int width = in.readInt();
+            int height = in.readInt();
+            String[] tags = new String[in.readUnsignedShort()];
+            for (int j = 0; j < tags.length; j++) {
+                tags[j] = in.readUTF();
+            }
+            if (offset < BundleFormat.HEADER_SIZE || length < 0
+                    || offset + length > indexOffset
+                    || width <= 0 || height <= 0) {
+                throw new IOException("Corrupt bundle entry " + name);
+            }
+            if (result.mIndexByName.put(name, i) != null) {
+                throw new IOException("Duplicate bundle entry " + name);
+            }
+            result.mNames[i] = name;
+            result.mOffsets[i] = offset;
+            result.mLengths[i] = length;
+            result.mWidths[i] = width;
+            result.mHeights[i] = height;
+            result.mTags[i] = tags;
+        }
+        return result;
+    }
+
+    public int getEntryCount() {
+        return mNames.length;
+    }
+
+    public String getName(int index) {
+        return mNames[index];
+    }
+
+    /**
+     * @return The tags the entry was bundled with.
+     */
+    public String[] getTags(int index) {
+        return mTags[index].clone();
+    }
+
+    /**
+     * @return The offset of the entry's payload from the start of the
+     *         bundle.
+     */
+    public long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * @return The length of the entry's payload in bytes.
+     */
+    public int getLength(int index) {
+        return mLengths[index];
+    }
+
+    public int getWidth(int index) {
+        return mWidths[index];
+    }
+
+    public int getHeight(int index) {
+        return mHeights[index];
+    }
+
+    /**
+     * @return The index of the entry named {@code name}, or -1 if there is
+     *         none.
+     */
+    public int indexOf(String name) {
+        Integer index = mIndexByName.get(name);
+        return index != null ? index : -1;
+    }
+}
@@ -0,0 +1,249 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Writes an asset bundle in the {@link BundleFormat} layout. Runs on a
+ * desktop JVM, so bundles can be built on a server and pushed to kiosks as
+ * one file per content update:
+ * <pre>
+ * ./gradlew :bundletool:installDist
+ * bundletool/build/install/bundletool/bin/bundletool [--max-edge 1920]
+ *         [--quality 0.85] spring.bundle --tags campaign:spring,locale:de
+ *         a.jpg b.jpg --tags campaign:spring,locale:fr c.jpg
+ * </pre>
+ * Each image is scaled down to fit {@code --max-edge}, the longest edge of
+ * the target screens, and encoded as JPEG, or as PNG if it has transparency.
+ * {@code --tags} applies to the images that follow it. Images are stored
+ * as they are read; EXIF orientation is not applied, so sources must be
+ * upright.
+ */
+public class BundleWriter implements Closeable {
+    private static final int DEFAULT_MAX_EDGE = 1920;
+    private static final float DEFAULT_QUALITY = 0.85f;
+
+    private final RandomAccessFile mFile;
+    private final int mMaxEdge;
+    private final float mQuality;
+    private final ByteArrayOutputStream mIndexBytes =
+            new ByteArrayOutputStream();
+    private final DataOutputStream mIndex = new DataOutputStream(mIndexBytes);
+    private final Set<String> mNames = new HashSet<String>();
+    private int mCount;
+
+    public BundleWriter(File file, int maxEdge, float quality)
+            throws IOException {
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mMaxEdge = maxEdge;
+        mQuality = quality;
+        // The header is written last, once the index is known
+        mFile.seek(BundleFormat.HEADER_SIZE);
+    }
+
+    /**
+     * Scales, encodes and appends the image in {@code source}, named after
+     * the file.
+     */
+    public void add(File source, List<String> tags) throws IOException {
+        String name = source.getName();
+        if (!mNames.add(name)) {
+            throw new IOException("Duplicate name " + name);
+        }
+        BufferedImage image = ImageIO.read(source);
+        if (image == null) {
+            throw new IOException("Not an image: " + source);
+        }
+        image = scale(image, mMaxEdge);
+        byte[] payload = encode(image, mQuality);
+
+        long offset = align(mFile.getFilePointer());
+        mFile.seek(offset);
+        mFile.write(payload);
+
+        mIndex.writeUTF(name);
+        mIndex.writeLong(offset);
+        mIndex.writeInt(payload.length);
+        mIndex.writeInt(image.getWidth());
+        mIndex.writeInt(image.getHeight());
+        if (tags.size() > 0xffff) {
+            throw new IOException("Too many tags for " + name);
+        }
+        mIndex.writeShort(tags.size());
+        for (String tag : tags) {
+            mIndex.writeUTF(tag);
+        }
+        mCount++;
+    }
+
+    /**
+     * Writes the index and the header, and closes the file.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            mIndex.flush();
+            byte[] index = mIndexBytes.toByteArray();
+            long indexOffset = mFile.getFilePointer();
+            mFile.write(index);
+            CRC32 crc = new CRC32();
+            crc.update(index);
+
+            mFile.seek(0);
+            mFile.write(BundleFormat.getMagic());
+            mFile.writeInt(BundleFormat.VERSION);
+            mFile.writeInt(mCount);
+            mFile.writeLong(indexOffset);
+            mFile.writeInt(index.length);
+            mFile.writeInt((int) crc.getValue());
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private static long align(long offset) {
+        long alignment = BundleFormat.PAYLOAD_ALIGNMENT;
+        return (offset + alignment - 1) / alignment * alignment;
+    }
+
+    /**
+     * @return {@code image} scaled to fit {@code maxEdge}, halving at a time
+     *         so that downscaling by large factors does not alias.
+     */
+    static BufferedImage scale(BufferedImage image, int maxEdge) {
+        int longEdge = Math.max(image.getWidth(), image.getHeight());
+        if (longEdge <= maxEdge) {
+            return image;
+        }
+        float scale = (float) maxEdge / longEdge;
+        int width = Math.max(1, Math.round(image.getWidth() * scale));
+        int height = Math.max(1, Math.round(image.getHeight() * scale));
+        int type = image.getColorModel().hasAlpha()
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = image;
+        int w = image.getWidth();
+        int h = image.getHeight();
+        do {
+            w = Math.max(width, w / 2);
+            h = Math.max(height, h / 2);
+            BufferedImage step = new BufferedImage(w, h, type);
+            Graphics2D g = step.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(scaled, 0, 0, w, h, null);
+            g.dispose();
+            scaled = step;
+        } while (w != width || h != height);
+        return scaled;
+    }
+
+    private static byte[] encode(BufferedImage image, float quality)
+            throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (image.getColorModel().hasAlpha()) {
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        }
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            // The JPEG writer misreads images with other layouts
+            BufferedImage rgb = new BufferedImage(image.getWidth(),
+                    image.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = rgb.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            image = rgb;
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg")
+                .next();
+        try {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            MemoryCacheImageOutputStream stream =
+                    new MemoryCacheImageOutputStream(out);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+            stream.close();
+        } finally {
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int maxEdge = DEFAULT_MAX_EDGE;
+        float quality = DEFAULT_QUALITY;
+        int i = 0;
+        for (; i < args.length && args[i].startsWith("--"); i += 2) {
+            if (i + 1 >= args.length) {
+                usage();
+            } else if (args[i].equals("--max-edge")) {
+                maxEdge = Integer.parseInt(args[i + 1]);
+            } else if (args[i].equals("--quality")) {
+                quality = Float.parseFloat(args[i + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (i >= args.length || !args[i].endsWith(BundleFormat.EXTENSION)) {
+            usage();
+        }
+
+        BundleWriter writer = new BundleWriter(new File(args[i++]), maxEdge,
+                quality);
+        try {
+            List<String> tags = new ArrayList<String>();
+            for (; i < args.length; i++) {
+                if (args[i].equals("--tags") && i + 1 < args.length) {
+                    tags = Arrays.asList(args[++i].split(","));
+                } else {
+                    writer.add(new File(args[i]), tags);
+                    System.out.println("Added " + args[i] + " " + tags);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: BundleWriter [--max-edge PIXELS]"
+                + " [--quality 0..1] OUT" + BundleFormat.EXTENSION
+                + " [--tags TAG,...] IMAGE...");
+        System.exit(2);
+    }
+}
@@ -0,0 +1,214 @@
+// Copyright 2016 Google Inc.
+// 
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+// 
+//      http://www.apache.org/licenses/LICENSE-2.0
+// 
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.codelabs.cosu;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes bundles with {@link BundleWriter} and reads them back with
+ * {@link BundleIndex}.
+ */
+public class BundleIndexTest {
+    // Header fields, see BundleFormat
+    private static final int VERSION_OFFSET = 8;
+    private static final int INDEX_OFFSET_OFFSET = 16;
+    private static final int INDEX_LENGTH_OFFSET = 24;
+    private static final int INDEX_CRC_OFFSET = 28;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private byte[] mBundle;
+
+    @Before
+    public void setUp() throws IOException {
+        File file = mFolder.newFile("test" + BundleFormat.EXTENSION);
+        BundleWriter writer = new BundleWriter(file, 100, 0.85f);
+        try {
+            writer.add(image("wide.png", 400, 200, false),
+                    Arrays.asList("lobby", "menu"));
+            writer.add(image("alpha.png", 30, 60, true),
+                    Collections.<String>emptyList());
+        } finally {
+            writer.close();
+        }
+        mBundle = Files.readAllBytes(file.toPath());
+    }
+
+    private File image(String name, int width, int height, boolean alpha)
+            throws IOException {
+        BufferedImage image = new BufferedImage(width, height, alpha
+                ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, 0x80000000 | (x * 255 / width) << 16
+                        | (y * 255 / height) << 8);
+            }
+        }
+        File file = new File(mFolder.getRoot(), name);
+        ImageIO.write(image, "png", file);
+        return file;
+    }
+
+    private static BundleIndex read(byte[] bundle) throws IOException {
+        return BundleIndex.read(ByteBuffer.wrap(bundle));
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        BundleIndex index = read(mBundle);
+        assertEquals(2, index.getEntryCount());
+
+        assertEquals(0, index.indexOf("wide.png"));
+        assertArrayEquals(new String[] {"lobby", "menu"}, index.getTags(0));
+        // Scaled to fit the 100 pixel edge
+        assertEquals(100, index.getWidth(0));
+        assertEquals(50, index.getHeight(0));
+        assertPayloadStartsWith(index, 0, 0xff, 0xd8);
+
+        assertEquals(1, index.indexOf("alpha.png"));
+        assertEquals(0, index.getTags(1).length);
+        assertEquals(30, index.getWidth(1));
+        assertEquals(60, index.getHeight(1));
+        // Kept as PNG for its alpha
+        assertPayloadStartsWith(index, 1, 0x89, 'P', 'N', 'G');
+
+        assertEquals(-1, index.indexOf("missing.png"));
+    }
+
+    private void assertPayloadStartsWith(BundleIndex index, int entry,
+            int... bytes) {
+        long offset = index.getOffset(entry);
+        assertEquals(0, offset % BundleFormat.PAYLOAD_ALIGNMENT);
+        assertTrue(index.getLength(entry) >= bytes.length);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals((byte) bytes[i], mBundle[(int) offset + i]);
+        }
+    }
+
+    @Test
+    public void readLeavesBufferPosition() throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(mBundle);
+        buffer.position(5);
+        BundleIndex.read(buffer);
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    public void rejectsBadMagic() {
+        mBundle[0] = 'X';
+        assertCorrupt("Not a bundle");
+    }
+
+    @Test
+    public void rejectsShortFile() {
+        mBundle = Arrays.copyOf(mBundle, BundleFormat.HEADER_SIZE - 1);
+        assertCorrupt("Not a bundle");
+    }
+
+    @Test
+    public void rejectsOtherVersion() {
+        ByteBuffer.wrap(mBundle).putInt(VERSION_OFFSET,
+                BundleFormat.VERSION + 1);
+        assertCorrupt("Unsupported bundle version");
+    }
+
+    @Test
+    public void rejectsTruncatedIndex() {
+        mBundle = Arrays.copyOf(mBundle, mBundle.length - 1);
+        assertCorrupt("Corrupt bundle header");
+    }
+
+    @Test
+    public void rejectsCorruptIndex() {
+        mBundle[indexOffset() + 2] ^= 0x20;
+        assertCorrupt("Corrupt bundle index");
+    }
+
+    @Test
+    public void rejectsEntryPastIndex() {
+        // The first entry's length, after its name and offset
+        int length = indexOffset() + 2 + "wide.png".length() + 8;
+        ByteBuffer.wrap(mBundle).putInt(length, mBundle.length);
+        updateCrc();
+        assertCorrupt("Corrupt bundle entry wide.png");
+    }
+
+    @Test
+    public void rejectsEntryInHeader() {
+        int offset = indexOffset() + 2 + "wide.png".length();
+        ByteBuffer.wrap(mBundle).putLong(offset, 0);
+        updateCrc();
+        assertCorrupt("Corrupt bundle entry wide.png");
+    }
+
+    @Test
+    public void rejectsEntryWithoutSize() {
+        int width = indexOffset() + 2 + "wide.png".length() + 12;
+        ByteBuffer.wrap(mBundle).putInt(width, 0);
+        updateCrc();
+        assertCorrupt("Corrupt bundle entry wide.png");
+    }
+
+    @Test
+    public void rejectsCountLargerThanIndex() {
+        ByteBuffer.wrap(mBundle).putInt(VERSION_OFFSET + 4, 1 << 30);
+        assertCorrupt("Corrupt bundle header");
+    }
+
+    private int indexOffset() {
+        return (int) ByteBuffer.wrap(mBundle).getLong(INDEX_OFFSET_OFFSET);
+    }
+
+    /**
+     * Stores the CRC of the index as it is now, so that a change to it
+     * reaches the entry checks.
+     */
+    private void updateCrc() {
+        ByteBuffer buffer = ByteBuffer.wrap(mBundle);
+        CRC32 crc = new CRC32();
+        crc.update(mBundle, indexOffset(),
+                buffer.getInt(INDEX_LENGTH_OFFSET));
+        buffer.putInt(INDEX_CRC_OFFSET, (int) crc.getValue());
+    }
+
+    private void assertCorrupt(String message) {
+        try {
+            read(mBundle);
+            fail("Read a corrupt bundle");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+}